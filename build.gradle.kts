@@ -89,6 +89,9 @@ dependencies {
 
     include(modImplementation("me.sailex:secondbrainengine:${property("deps.engine")}")!!)
     include(modImplementation("com.github.gnembon:fabric-carpet:${project.property("carpet_version")}")!!)
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.10.2")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 loom {
@@ -117,6 +120,10 @@ kotlin {
     jvmToolchain(stringJavaVersion.toInt())
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
 tasks.jar {
     archiveVersion.set("")
 }
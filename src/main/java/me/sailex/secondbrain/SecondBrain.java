@@ -7,15 +7,20 @@ import lombok.Getter;
 import me.sailex.secondbrain.common.NPCService;
 import me.sailex.secondbrain.common.Player2NpcSynchronizer;
 import me.sailex.secondbrain.config.ConfigProvider;
+import me.sailex.secondbrain.context.BlockIndexService;
 import me.sailex.secondbrain.database.SqliteClient;
 import me.sailex.secondbrain.database.repositories.RepositoryFactory;
 import me.sailex.secondbrain.database.resources.ResourceProvider;
+import me.sailex.secondbrain.http.HttpTransport;
 import me.sailex.secondbrain.listener.EventListenerRegisterer;
+import me.sailex.secondbrain.llm.LLMResponseCache;
+import me.sailex.secondbrain.llm.LLMScheduler;
 import me.sailex.secondbrain.networking.NetworkHandler;
 import me.sailex.secondbrain.util.LogUtil;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerEntityEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.entity.player.PlayerEntity;
 
 /**
@@ -36,7 +41,10 @@ public class SecondBrain implements ModInitializer {
 
         ResourceProvider resourceProvider = new ResourceProvider(repositoryFactory.getConversationRepository());
 
-        NPCFactory npcFactory = new NPCFactory(configProvider);
+        BlockIndexService blockIndexService = new BlockIndexService();
+        LLMScheduler llmScheduler = new LLMScheduler();
+        LLMResponseCache llmResponseCache = new LLMResponseCache(configProvider, repositoryFactory.getResponseCacheRepository());
+        NPCFactory npcFactory = new NPCFactory(configProvider, blockIndexService, llmScheduler, llmResponseCache);
         NPCService npcService = new NPCService(npcFactory, configProvider, resourceProvider);
 
         PlayerAuthorizer authorizer = new PlayerAuthorizer();
@@ -44,7 +52,7 @@ public class SecondBrain implements ModInitializer {
         NetworkHandler networkManager = new NetworkHandler(configProvider, npcService, authorizer);
         networkManager.registerPacketReceiver();
 
-        EventListenerRegisterer eventListenerRegisterer = new EventListenerRegisterer(npcService.getUuidToNpc());
+        EventListenerRegisterer eventListenerRegisterer = new EventListenerRegisterer(npcService.getUuidToNpc(), blockIndexService);
         eventListenerRegisterer.register();
 
         Player2NpcSynchronizer synchronizer = new Player2NpcSynchronizer(npcService, configProvider);
@@ -54,13 +62,16 @@ public class SecondBrain implements ModInitializer {
 
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
             LogUtil.initialize(server, configProvider);
+            HttpTransport.configure(configProvider.getBaseConfig());
             repositoryFactory.initRepositories();
             resourceProvider.loadResources(configProvider.getUuidsOfNpcs());
+            blockIndexService.init();
             npcService.init();
         });
+        ServerTickEvents.END_SERVER_TICK.register(server -> blockIndexService.onServerTick());
 
         syncOnPlayerLoad(synchronizer);
-        onStop(npcService, configProvider, sqlite, synchronizer, resourceProvider);
+        onStop(npcService, configProvider, sqlite, synchronizer, resourceProvider, blockIndexService);
     }
 
     private void syncOnPlayerLoad(Player2NpcSynchronizer synchronizer) {
@@ -77,11 +88,13 @@ public class SecondBrain implements ModInitializer {
         ConfigProvider configProvider,
         SqliteClient sqlite,
         Player2NpcSynchronizer synchronizer,
-        ResourceProvider resourceProvider
+        ResourceProvider resourceProvider,
+        BlockIndexService blockIndexService
 	) {
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
             synchronizer.shutdown();
             npcService.shutdownNPCs(server);
+            blockIndexService.stopService();
             resourceProvider.saveResources();
             sqlite.closeConnection();
             configProvider.saveAll();
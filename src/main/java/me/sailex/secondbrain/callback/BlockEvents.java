@@ -0,0 +1,24 @@
+package me.sailex.secondbrain.callback;
+
+import net.fabricmc.fabric.api.event.Event;
+import net.fabricmc.fabric.api.event.EventFactory;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+
+public final class BlockEvents {
+
+	public static final Event<OnBlockChanged> ON_BLOCK_CHANGED = EventFactory.createArrayBacked(OnBlockChanged.class, listeners ->
+		(world, pos) -> {
+			for (OnBlockChanged listener : listeners) {
+				listener.onBlockChanged(world, pos);
+			}
+	});
+
+	@FunctionalInterface
+	public interface OnBlockChanged {
+
+		void onBlockChanged(ServerWorld world, BlockPos pos);
+
+	}
+
+}
@@ -54,11 +54,33 @@ public class BaseConfigScreen extends ConfigScreen<BaseConfig> {
                 .onChanged()
                 .subscribe(value -> config.setChunkExpiryTime((int) Math.round(value)));
 
+        panel.childById(LabelComponent.class, "maxRequestsPerHost-label").text(Text.of(BaseConfig.MAX_REQUESTS_PER_HOST_KEY));
+        panel.childById(DiscreteSliderComponent.class, "maxRequestsPerHost")
+                .setFromDiscreteValue(config.getMaxRequestsPerHost())
+                .onChanged()
+                .subscribe(value -> config.setMaxRequestsPerHost((int) Math.round(value)));
+
+        panel.childById(LabelComponent.class, "httpConnectTimeout-label").text(Text.of(BaseConfig.HTTP_CONNECT_TIMEOUT_KEY));
+        panel.childById(DiscreteSliderComponent.class, "httpConnectTimeout")
+                .setFromDiscreteValue(config.getHttpConnectTimeout())
+                .onChanged()
+                .subscribe(value -> config.setHttpConnectTimeout((int) Math.round(value)));
+
         panel.childById(LabelComponent.class, "verbose-label").text(Text.of(BaseConfig.VERBOSE_KEY));
         panel.childById(CheckboxComponent.class, "verbose")
                 .checked(config.isVerbose())
                 .onChanged(listener -> config.setVerbose(!config.isVerbose()));
 
+        panel.childById(LabelComponent.class, "llmResponseCache-label").text(Text.of(BaseConfig.LLM_RESPONSE_CACHE_KEY));
+        panel.childById(CheckboxComponent.class, "llmResponseCache")
+                .checked(config.isLlmResponseCache())
+                .onChanged(listener -> config.setLlmResponseCache(!config.isLlmResponseCache()));
+
+        panel.childById(LabelComponent.class, "llmResponseCachePersistent-label").text(Text.of(BaseConfig.LLM_RESPONSE_CACHE_PERSISTENT_KEY));
+        panel.childById(CheckboxComponent.class, "llmResponseCachePersistent")
+                .checked(config.isLlmResponseCachePersistent())
+                .onChanged(listener -> config.setLlmResponseCachePersistent(!config.isLlmResponseCachePersistent()));
+
         panel.childById(LabelComponent.class, "ollamaUrl-label").text(Text.of(BaseConfig.OLLAMA_URL_KEY));
         panel.childById(TextAreaComponent.class, "ollamaUrl")
                 .text(config.getOllamaUrl())
@@ -34,6 +34,7 @@ public class NPCConfigScreen extends ConfigScreen<NPCConfig> {
     private static final int CHARACTER_INPUT_HEIGHT = 30;
     private static final int MIN_CONVERSATION_RANGE = 2;
     private static final int MAX_CONVERSATION_RANGE = 64;
+    private static final int MAX_HISTORY_TOKEN_BUDGET_K = 64;
     private static final List<SkinOption> SKIN_OPTIONS = List.of(
             new SkinOption("Random", ""),
             new SkinOption("Steve", "https://minecraft.wiki/Special:FilePath/Char.png"),
@@ -126,6 +127,8 @@ public class NPCConfigScreen extends ConfigScreen<NPCConfig> {
                 .subscribe(config::setLlmCharacter);
         llmInfo.child(llmCharacter);
 
+        drawHistoryTokenBudgetSlider(llmInfo);
+        llmInfo.child(buildDeltaContextCheckbox());
         drawZoneSpecificBehaviourButton(llmInfo);
         drawSkinSelector(llmInfo);
         if (config.getLlmType() == LLMType.OPENAI) {
@@ -147,6 +150,21 @@ public class NPCConfigScreen extends ConfigScreen<NPCConfig> {
                 .subscribe(value -> config.setConversationRange((int) Math.round(value)));
     }
 
+    private void drawHistoryTokenBudgetSlider(FlowLayout llmInfo) {
+        llmInfo.child(label(Text.of(NPCConfig.HISTORY_TOKEN_BUDGET)).shadow(true).margins(Insets.top(7)));
+        DiscreteSliderComponent tokenBudgetSlider = discreteSlider(Sizing.fill(HALF_INPUT_WIDTH), 0, MAX_HISTORY_TOKEN_BUDGET_K);
+        tokenBudgetSlider.setFromDiscreteValue(Math.min(MAX_HISTORY_TOKEN_BUDGET_K, config.getHistoryTokenBudget() / 1000));
+        tokenBudgetSlider.onChanged()
+                .subscribe(value -> config.setHistoryTokenBudget((int) Math.round(value) * 1000));
+        llmInfo.child(tokenBudgetSlider);
+    }
+
+    private CheckboxComponent buildDeltaContextCheckbox() {
+        return checkbox(Text.of(NPCConfig.DELTA_CONTEXT))
+                .checked(config.isDeltaContext())
+                .onChanged(listener -> config.setDeltaContext(!config.isDeltaContext()));
+    }
+
     private CheckboxComponent buildUseTtsCheckbox() {
         return checkbox(Text.of("Use TTS"))
                 .checked(config.isTTS())
@@ -4,12 +4,15 @@ import me.sailex.altoclef.AltoClefController
 import me.sailex.automatone.api.BaritoneAPI
 import me.sailex.secondbrain.config.ConfigProvider
 import me.sailex.secondbrain.config.NPCConfig
+import me.sailex.secondbrain.context.BlockIndexService
 import me.sailex.secondbrain.context.ContextProvider
 import me.sailex.secondbrain.event.NPCEventHandler
 import me.sailex.secondbrain.exception.NPCCreationException
 import me.sailex.secondbrain.history.ConversationHistory
 import me.sailex.secondbrain.history.Message
 import me.sailex.secondbrain.llm.LLMClient
+import me.sailex.secondbrain.llm.LLMResponseCache
+import me.sailex.secondbrain.llm.LLMScheduler
 import me.sailex.secondbrain.llm.LLMType
 import me.sailex.secondbrain.llm.ollama.OllamaClient
 import me.sailex.secondbrain.llm.openai.OpenAiClient
@@ -20,11 +23,14 @@ import net.minecraft.server.network.ServerPlayerEntity
 
 class NPCFactory(
     private val configProvider: ConfigProvider,
+    private val blockIndexService: BlockIndexService,
+    private val llmScheduler: LLMScheduler,
+    private val llmResponseCache: LLMResponseCache,
 ) {
      fun createNpc(npcEntity: ServerPlayerEntity, config: NPCConfig, loadedConversation: List<Conversation>?): NPC {
         val baseConfig = configProvider.baseConfig
         val conversationRange = resolveConversationRangeInBlocks(config)
-        val contextProvider = ContextProvider(npcEntity, baseConfig, conversationRange)
+        val contextProvider = ContextProvider(npcEntity, baseConfig, blockIndexService, conversationRange)
 
         val llmClient = initLLMClient(config)
 
@@ -34,8 +40,11 @@ class NPCFactory(
             ?.filter { !it.role.equals("system", ignoreCase = true) }
             ?.map { Message(it.message, it.role) }
             ?.toMutableList() ?: mutableListOf()
-        val history = ConversationHistory(llmClient, messages)
-        val eventHandler = NPCEventHandler(llmClient, history, contextProvider, controller, config)
+        val history = ConversationHistory(
+            llmClient, llmScheduler, llmResponseCache, config.npcName, messages,
+            config.historyTokenBudget, config.isDeltaContext
+        )
+        val eventHandler = NPCEventHandler(llmClient, llmScheduler, llmResponseCache, history, contextProvider, controller, config)
         return NPC(npcEntity, llmClient, history, eventHandler, controller, contextProvider, config)
     }
 
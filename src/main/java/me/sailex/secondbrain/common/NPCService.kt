@@ -9,6 +9,7 @@ import me.sailex.secondbrain.constant.Instructions
 import me.sailex.secondbrain.database.resources.ResourceProvider
 import me.sailex.secondbrain.exception.NPCCreationException
 import me.sailex.secondbrain.model.NPC
+import me.sailex.secondbrain.thread.NPCExecutors
 import me.sailex.secondbrain.util.LogUtil
 import net.minecraft.entity.player.PlayerEntity
 import net.minecraft.server.MinecraftServer
@@ -18,7 +19,6 @@ import java.util.UUID
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
 
 class NPCService(
     private val factory: NPCFactory,
@@ -33,7 +33,7 @@ class NPCService(
     val uuidToNpc = ConcurrentHashMap<UUID, NPC>()
 
     fun init() {
-        executorService = Executors.newSingleThreadExecutor()
+        executorService = NPCExecutors.newSerialExecutor("npc-service")
     }
 
     fun createNpc(newConfig: NPCConfig, server: MinecraftServer, spawnPos: BlockPos?, owner: PlayerEntity?) {
@@ -131,6 +131,7 @@ fun unlockMemoryForNpc(npcName: String, memoryId: String): MemoryUnlockStatus {
             npcToRemove.llmClient.stopService()
             npcToRemove.eventHandler.stopService()
             npcToRemove.contextProvider.chunkManager.stopService()
+            npcToRemove.history.stopService()
             resourceProvider.addConversations(uuid,npcToRemove.history.latestConversations)
             uuidToNpc.remove(uuid)
 
@@ -17,6 +17,10 @@ public class BaseConfig implements Configurable {
     private String ollamaUrl = "http://localhost:11434";
     private String openaiBaseUrl = "https://api.openai.com/v1";
     private String openaiApiKey = "";
+    private boolean llmResponseCache = false;
+    private boolean llmResponseCachePersistent = false;
+    private int maxRequestsPerHost = 4;
+    private int httpConnectTimeout = 10;
 
     public int getLlmTimeout() {
         return llmTimeout;
@@ -82,6 +86,38 @@ public class BaseConfig implements Configurable {
         this.openaiApiKey = openaiApiKey;
     }
 
+    public boolean isLlmResponseCache() {
+        return llmResponseCache;
+    }
+
+    public void setLlmResponseCache(boolean llmResponseCache) {
+        this.llmResponseCache = llmResponseCache;
+    }
+
+    public boolean isLlmResponseCachePersistent() {
+        return llmResponseCachePersistent;
+    }
+
+    public void setLlmResponseCachePersistent(boolean llmResponseCachePersistent) {
+        this.llmResponseCachePersistent = llmResponseCachePersistent;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public int getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    public void setHttpConnectTimeout(int httpConnectTimeout) {
+        this.httpConnectTimeout = httpConnectTimeout;
+    }
+
     @Override
     public String getConfigName() {
         return "base";
@@ -96,6 +132,10 @@ public class BaseConfig implements Configurable {
             Endec.STRING.fieldOf("ollamaUrl", BaseConfig::getOllamaUrl),
             Endec.STRING.fieldOf("openaiBaseUrl", BaseConfig::getOpenaiBaseUrl),
             Endec.STRING.fieldOf("openaiApiKey", BaseConfig::getOpenaiApiKey),
+            Endec.BOOLEAN.fieldOf("llmResponseCache", BaseConfig::isLlmResponseCache),
+            Endec.BOOLEAN.fieldOf("llmResponseCachePersistent", BaseConfig::isLlmResponseCachePersistent),
+            Endec.INT.fieldOf("maxRequestsPerHost", BaseConfig::getMaxRequestsPerHost),
+            Endec.INT.fieldOf("httpConnectTimeout", BaseConfig::getHttpConnectTimeout),
             BaseConfig::new
     );
 
@@ -109,7 +149,11 @@ public class BaseConfig implements Configurable {
                 ",verbose=" + verbose +
                 ",ollamaUrl=" + ollamaUrl +
                 ",openaiBaseUrl=" + openaiBaseUrl +
-                ",openaiApiKey=***}";
+                ",openaiApiKey=***" +
+                ",llmResponseCache=" + llmResponseCache +
+                ",llmResponseCachePersistent=" + llmResponseCachePersistent +
+                ",maxRequestsPerHost=" + maxRequestsPerHost +
+                ",httpConnectTimeout=" + httpConnectTimeout + "}";
     }
 
     public static BaseConfig deepCopy(BaseConfig config) {
@@ -122,6 +166,10 @@ public class BaseConfig implements Configurable {
         copied.setOllamaUrl(config.getOllamaUrl());
         copied.setOpenaiBaseUrl(config.getOpenaiBaseUrl());
         copied.setOpenaiApiKey(config.getOpenaiApiKey());
+        copied.setLlmResponseCache(config.isLlmResponseCache());
+        copied.setLlmResponseCachePersistent(config.isLlmResponseCachePersistent());
+        copied.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+        copied.setHttpConnectTimeout(config.getHttpConnectTimeout());
         return copied;
     }
 
@@ -133,4 +181,8 @@ public class BaseConfig implements Configurable {
     public static final String OLLAMA_URL_KEY = "Ollama URL";
     public static final String OPENAI_BASE_URL_KEY = "OpenAI Compatible URL";
     public static final String OPENAI_API_KEY = "OpenAI API Key";
+    public static final String LLM_RESPONSE_CACHE_KEY = "Cache LLM Responses";
+    public static final String LLM_RESPONSE_CACHE_PERSISTENT_KEY = "Keep Cached Responses After Restart";
+    public static final String MAX_REQUESTS_PER_HOST_KEY = "Max Requests Per Host";
+    public static final String HTTP_CONNECT_TIMEOUT_KEY = "HTTP Connect Timeout";
 }
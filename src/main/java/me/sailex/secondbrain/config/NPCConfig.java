@@ -28,6 +28,8 @@ public class NPCConfig implements Configurable {
 	private int conversationRange = 64;
 	private List<MemoryFragment> memoryFragments = new ArrayList<>();
 	private List<ZoneBehavior> zoneBehaviors = new ArrayList<>();
+	private int historyTokenBudget = 0;
+	private boolean deltaContext = false;
 
 	private boolean isTTS = false;
 
@@ -49,7 +51,9 @@ public class NPCConfig implements Configurable {
 		String skinUrl,
 		int conversationRange,
 		List<MemoryFragment> memoryFragments,
-		List<ZoneBehavior> zoneBehaviors
+		List<ZoneBehavior> zoneBehaviors,
+		int historyTokenBudget,
+		boolean deltaContext
 	) {
 		this.npcName = npcName;
 		this.uuid = UUID.fromString(uuid);
@@ -63,6 +67,8 @@ public class NPCConfig implements Configurable {
 		setConversationRange(conversationRange);
 		setMemoryFragments(memoryFragments);
 		setZoneBehaviors(zoneBehaviors);
+		setHistoryTokenBudget(historyTokenBudget);
+		this.deltaContext = deltaContext;
 	}
 
 	public static class Builder {
@@ -231,6 +237,28 @@ public class NPCConfig implements Configurable {
 		this.conversationRange = Math.max(2, Math.min(64, conversationRange));
 	}
 
+	/**
+	 * @return the max estimated tokens of the conversation history per request, 0 if only the number of messages is limited
+	 */
+	public int getHistoryTokenBudget() {
+		return historyTokenBudget;
+	}
+
+	public void setHistoryTokenBudget(int historyTokenBudget) {
+		this.historyTokenBudget = Math.max(0, historyTokenBudget);
+	}
+
+	/**
+	 * @return if prompts only contain the changes of the environment since the last prompt instead of all of it
+	 */
+	public boolean isDeltaContext() {
+		return deltaContext;
+	}
+
+	public void setDeltaContext(boolean deltaContext) {
+		this.deltaContext = deltaContext;
+	}
+
 	public List<ZoneBehavior> getZoneBehaviors() {
 		if (zoneBehaviors == null) {
 			zoneBehaviors = new ArrayList<>();
@@ -261,6 +289,8 @@ public class NPCConfig implements Configurable {
 			Endec.INT.fieldOf("conversationRange", NPCConfig::getConversationRange),
 			MemoryFragment.ENDEC.listOf().fieldOf("memoryFragments", NPCConfig::getMemoryFragments),
 			ZoneBehavior.ENDEC.listOf().fieldOf("zoneBehaviors", NPCConfig::getZoneBehaviors),
+			Endec.INT.fieldOf("historyTokenBudget", NPCConfig::getHistoryTokenBudget),
+			Endec.BOOLEAN.fieldOf("deltaContext", NPCConfig::isDeltaContext),
 			NPCConfig::new
 	);
 
@@ -277,7 +307,9 @@ public class NPCConfig implements Configurable {
                 config.skinUrl,
 				config.conversationRange,
 				deepCopyMemoryFragments(config.getMemoryFragments()),
-				deepCopyZoneBehaviors(config.getZoneBehaviors())
+				deepCopyZoneBehaviors(config.getZoneBehaviors()),
+				config.historyTokenBudget,
+				config.deltaContext
         );
     }
 
@@ -330,6 +362,8 @@ public class NPCConfig implements Configurable {
 				",llmCharacter=" + llmCharacter +
 				",memoryFragments=" + getMemoryFragments().size() +
 				",conversationRange=" + conversationRange +
+				",historyTokenBudget=" + historyTokenBudget +
+				",deltaContext=" + deltaContext +
 				",voiceId=" + voiceId +
 				",zoneBehaviorCount=" + getZoneBehaviors().size() + "}";
 	}
@@ -417,6 +451,8 @@ public class NPCConfig implements Configurable {
 	public static final String LLM_MODEL = "LLM Model";
 	public static final String IS_TTS = "Text to Speech";
 	public static final String CONVERSATION_RANGE = "Conversation Range (blocks)";
+	public static final String HISTORY_TOKEN_BUDGET = "History Token Budget (k tokens, 0 = off)";
+	public static final String DELTA_CONTEXT = "Only Send Environment Changes";
 	public static final String ZONE_SPECIFIC_BEHAVIOUR = "Zone Specific Behaviour";
 	public static final String ADD_ZONE = "+ Add Zone";
 
@@ -4,6 +4,7 @@ import me.sailex.altoclef.commandsystem.Command;
 import me.sailex.secondbrain.llm.LLMType;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.stream.Collectors;
 
 /**
@@ -139,6 +140,24 @@ public class Instructions {
 		%s
 		""";
 
+	public static final String DELTA_PROMPT_TEMPLATE = """
+		# INSTRUCTION
+		%s
+		
+		# ENVIRONMENT CHANGES
+		Only what changed since the last environment you were given, everything else is unchanged.
+		## Nearby entities:
+		%s
+		## Nearest blocks:
+		%s
+		
+		# INVENTORY CHANGES
+		%s
+		
+		# STATE CHANGES
+		%s
+		""";
+
     public static final String SUMMARY_PROMPT = """
         Our AI agent has been chatting with the user and playing Minecraft.
         Update the agent's memory by summarizing the following conversation
@@ -157,8 +176,12 @@ public class Instructions {
 
     public static final String COMMAND_ERROR_PROMPT = "Command %s failed. Error content: %s";
 
+    public static final String COALESCED_EVENTS_PROMPT = "Several things happened since your last response, oldest first. Respond to all of them at once:\n%s";
+
 	public static String getLlmSystemPrompt(String npcName, String llmDefaultPrompt, Collection<Command> commands, LLMType llmType) {
+        // sorted, so the prompt stays byte identical and the backend can reuse its cached prefix
         String formattedCommands = commands.stream()
+                .sorted(Comparator.comparing(Command::getName))
                 .map(c -> c.getName() + ": " + c.getDescription())
                 .collect(Collectors.joining("\n"));
 
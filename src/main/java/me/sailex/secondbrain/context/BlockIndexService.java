@@ -0,0 +1,88 @@
+package me.sailex.secondbrain.context;
+
+import me.sailex.secondbrain.util.LogUtil;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds one shared {@link WorldBlockIndex} per world, the {@link ScanScheduler} all chunk managers
+ * take their server thread steps from and the pool the captured sections are scanned on.
+ * The pool is shared by all NPCs and leaves one core to the server thread.
+ */
+public class BlockIndexService {
+
+    private final Map<ServerWorld, WorldBlockIndex> worldIndexes = new ConcurrentHashMap<>();
+    private final BlockTypeTable blockTypes = new BlockTypeTable();
+    private final ScanScheduler scanScheduler = new ScanScheduler();
+    private ForkJoinPool scanPool;
+
+    public void init() {
+        scanPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public WorldBlockIndex getIndex(ServerWorld world) {
+        return worldIndexes.computeIfAbsent(world, key -> new WorldBlockIndex(key, blockTypes));
+    }
+
+    public BlockTypeTable getBlockTypes() {
+        return blockTypes;
+    }
+
+    public void register(ChunkManager chunkManager) {
+        scanScheduler.register(chunkManager);
+    }
+
+    public void unregister(ChunkManager chunkManager) {
+        scanScheduler.unregister(chunkManager);
+    }
+
+    /**
+     * Runs the scan steps of this tick. Must be called on the server thread.
+     */
+    public void onServerTick() {
+        scanScheduler.onTick();
+    }
+
+    /**
+     * Runs the scan task off the server thread. Tasks may run in parallel and in any order.
+     *
+     * @return future completing when the task is done, failed tasks are logged and complete normally
+     */
+    public CompletableFuture<Void> submitScan(Runnable scan) {
+        if (scanPool == null || scanPool.isShutdown()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(scan, scanPool)
+                .exceptionally(e -> {
+                    LogUtil.error("Error occurred scanning blocks", e);
+                    return null;
+                });
+    }
+
+    public void onBlockChanged(ServerWorld world, BlockPos pos) {
+        WorldBlockIndex index = worldIndexes.get(world);
+        if (index != null) {
+            index.onBlockChanged(pos);
+        }
+    }
+
+    public void onChunkChanged(ServerWorld world, ChunkPos chunkPos) {
+        WorldBlockIndex index = worldIndexes.get(world);
+        if (index != null) {
+            index.onChunkChanged(chunkPos);
+        }
+    }
+
+    public void stopService() {
+        if (scanPool != null) {
+            scanPool.shutdownNow();
+        }
+        worldIndexes.clear();
+    }
+}
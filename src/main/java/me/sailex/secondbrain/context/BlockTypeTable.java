@@ -0,0 +1,66 @@
+package me.sailex.secondbrain.context;
+
+import me.sailex.secondbrain.model.context.BlockData;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static me.sailex.secondbrain.util.MCDataUtil.getMiningLevel;
+import static me.sailex.secondbrain.util.MCDataUtil.getToolNeeded;
+
+/**
+ * Interns block types to int ids, so scanned blocks can be stored as primitive type ids and packed positions.
+ * Name, mining level and tool are resolved once per block state.
+ */
+public class BlockTypeTable {
+
+    public static final int NO_TYPE = -1;
+
+    private final Map<BlockState, Integer> stateToTypeId = new ConcurrentHashMap<>();
+    private final Map<String, Integer> nameToTypeId = new ConcurrentHashMap<>();
+    private final List<BlockType> types = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the type id of the state or {@link #NO_TYPE} if it is an air-like block
+     */
+    public int getTypeId(BlockState state) {
+        return stateToTypeId.computeIfAbsent(state, this::resolveTypeId);
+    }
+
+    /**
+     * @return the type id of the block type name or {@link #NO_TYPE} if no block of that type was scanned yet
+     */
+    public int getTypeId(String name) {
+        return nameToTypeId.getOrDefault(name, NO_TYPE);
+    }
+
+    public int size() {
+        return types.size();
+    }
+
+    public BlockData toBlockData(int typeId, long packedPos) {
+        BlockType type = types.get(typeId);
+        return new BlockData(type.name(), BlockPos.fromLong(packedPos), type.mineLevel(), type.toolNeeded());
+    }
+
+    private int resolveTypeId(BlockState state) {
+        String name = state.getBlock()
+                .getName().getString()
+                .toLowerCase().replace(" ", "_");
+        if (name.contains("air")) {
+            return NO_TYPE;
+        }
+        synchronized (types) {
+            return nameToTypeId.computeIfAbsent(name, key -> {
+                types.add(new BlockType(key, getMiningLevel(state), getToolNeeded(state)));
+                return types.size() - 1;
+            });
+        }
+    }
+
+    private record BlockType(String name, String mineLevel, String toolNeeded) {}
+}
@@ -5,81 +5,251 @@ import me.sailex.altoclef.multiversion.EntityVer;
 import me.sailex.secondbrain.config.BaseConfig;
 import me.sailex.secondbrain.model.context.BlockData;
 import me.sailex.secondbrain.util.LogUtil;
-import net.minecraft.block.BlockState;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
-import net.minecraft.util.math.Direction;
-import net.minecraft.world.World;
-import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.util.math.ChunkSectionPos;
 
 import java.util.*;
-import java.util.concurrent.*;
-
-import static me.sailex.secondbrain.util.MCDataUtil.getMiningLevel;
-import static me.sailex.secondbrain.util.MCDataUtil.getToolNeeded;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the accessible blocks around an NPC up to date.
+ * The blocks are refreshed when the NPC enters another chunk, moves away from the position of the last refresh
+ * or is about to handle an event. Changed blocks of an idle NPC are picked up after the chunk expiry time.
+ * A refresh is run in steps on the server thread by the {@link ScanScheduler}: the first step updates the
+ * tracked sections, every step copies dirty sections until the tick budget is used up,
+ * and the copies are scanned in parallel off the server thread.
+ */
 public class ChunkManager {
     private static final long DIAG_RATE_LIMIT_MS = 5000L;
-    private static final long THREAD_DIAG_RATE_LIMIT_MS = 60_000L;
+    private static final long MIN_REFRESH_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final int REFRESH_DISTANCE = 8;
 
     private final int verticalScanRange;
     private final int contextRangeInBlocks;
     private final int chunkRadius;
 
     private final ServerPlayerEntity npcEntity;
-    private final ScheduledExecutorService threadPool;
-    private final List<BlockData> currentLoadedBlocks;
-    private int scannedColumnsCountLastRefresh;
+    private final BlockIndexService blockIndexService;
+    private final long maxStaleNs;
+    private final Set<Long> trackedSections = new HashSet<>();
+    private WorldBlockIndex trackedIndex;
+    // area of the last completed refresh, which block queries are answered from
+    private volatile ScanArea scanArea;
+    private volatile boolean pendingEvent;
+    private volatile boolean stopped;
+    // completes once the refresh requested by the pending event is published
+    private CompletableFuture<Void> pendingEventRefresh = CompletableFuture.completedFuture(null);
+
+    // state of the refresh in progress, only accessed on the server thread
+    private ScanArea refreshingArea;
+    // area of the last started refresh, which decides when the next one is due
+    private ScanArea lastRefreshArea;
+    private boolean refreshingForEvent;
+    private CompletableFuture<Void> refreshingEventRefresh;
+    private int nextSection;
+    private final List<CompletableFuture<Void>> pendingScans = new ArrayList<>();
+    private long refreshStartNs;
+    private long snapshotNs;
+    private int loadedChunksCount;
+    private int scannedSectionsCount;
 
     @Getter
-    private final List<BlockData> nearbyBlocks = new ArrayList<>();
+    private volatile List<BlockData> nearbyBlocks = List.of();
 
 
-    public ChunkManager(ServerPlayerEntity npcEntity, BaseConfig config) {
+    public ChunkManager(ServerPlayerEntity npcEntity, BaseConfig config, BlockIndexService blockIndexService) {
         this(
             npcEntity,
+            blockIndexService,
             Math.max(1, config.getContextChunkRadius()) * 16,
             config.getContextVerticalScanRange(),
             config.getChunkExpiryTime()
         );
     }
 
-    public ChunkManager(ServerPlayerEntity npcEntity, int contextRangeInBlocks, int verticalScanRange, int chunkExpiryTime) {
+    public ChunkManager(
+        ServerPlayerEntity npcEntity,
+        BlockIndexService blockIndexService,
+        int contextRangeInBlocks,
+        int verticalScanRange,
+        int chunkExpiryTime
+    ) {
         this.npcEntity = npcEntity;
+        this.blockIndexService = blockIndexService;
         this.verticalScanRange = verticalScanRange;
         this.contextRangeInBlocks = Math.max(1, contextRangeInBlocks);
         this.chunkRadius = (this.contextRangeInBlocks - 1) / 16 + 1;
-        this.currentLoadedBlocks = new ArrayList<>();
-        this.threadPool = Executors.newSingleThreadScheduledExecutor();
-        scheduleRefreshBlocks(chunkExpiryTime);
-    }
-
-    private void scheduleRefreshBlocks(int chunkExpiryTime) {
-        threadPool.scheduleAtFixedRate(() -> {
-            long startNs = System.nanoTime();
-            int loadedChunksCount;
-            int scannedColumnsCount;
-            synchronized (this) {
-                loadedChunksCount = updateAllBlocks();
-                scannedColumnsCount = scannedColumnsCountLastRefresh;
-                updateNearbyBlocks();
+        this.maxStaleNs = TimeUnit.SECONDS.toNanos(Math.max(1, chunkExpiryTime));
+        blockIndexService.register(this);
+    }
+
+    /**
+     * Checks if a refresh is in progress or due. Must be called on the server thread.
+     * Apart from the first one, refreshes are at least {@link #MIN_REFRESH_INTERVAL_NS} apart.
+     */
+    public boolean needsScan() {
+        if (stopped) {
+            return false;
+        }
+        ScanArea area = lastRefreshArea;
+        if (refreshingArea != null || area == null || pendingEvent) {
+            // events don't wait for the min refresh interval
+            return true;
+        }
+        long sinceLastRefreshNs = System.nanoTime() - refreshStartNs;
+        if (sinceLastRefreshNs < MIN_REFRESH_INTERVAL_NS) {
+            return false;
+        }
+        return hasMovedSince(area)
+                || (sinceLastRefreshNs >= maxStaleNs && area.index().hasDirtySection(area.sectionKeys()));
+    }
+
+    /**
+     * @return true if the NPC changed the world or chunk or moved more than {@link #REFRESH_DISTANCE} blocks
+     * since the refresh of the area
+     */
+    private boolean hasMovedSince(ScanArea area) {
+        if (area.index().getWorld() != EntityVer.getWorld(npcEntity)) {
+            return true;
+        }
+        BlockPos pos = npcEntity.getBlockPos();
+        BlockPos center = area.center();
+        return ChunkSectionPos.getSectionCoord(pos.getX()) != ChunkSectionPos.getSectionCoord(center.getX())
+                || ChunkSectionPos.getSectionCoord(pos.getZ()) != ChunkSectionPos.getSectionCoord(center.getZ())
+                || pos.getSquaredDistance(center) > REFRESH_DISTANCE * REFRESH_DISTANCE;
+    }
+
+    public boolean hasPendingEvent() {
+        return pendingEvent || refreshingForEvent;
+    }
+
+    /**
+     * Refreshes the blocks as soon as possible, e.g. because the NPC has to handle an event.
+     * The refresh is preferred over the ones of other NPCs.
+     *
+     * @return future completing once the blocks of the refresh are published
+     */
+    public synchronized CompletableFuture<Void> requestRefresh() {
+        if (stopped) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!pendingEvent) {
+            pendingEvent = true;
+            pendingEventRefresh = new CompletableFuture<>();
+        }
+        return pendingEventRefresh;
+    }
+
+    /**
+     * Runs the next step of the refresh, starting a new refresh if none is in progress.
+     * Must be called on the server thread.
+     *
+     * @param deadlineNs {@link System#nanoTime()} at which the step should return
+     */
+    public synchronized void runScanStep(long deadlineNs) {
+        if (stopped) {
+            return;
+        }
+        long startNs = System.nanoTime();
+        if (refreshingArea == null) {
+            // events arriving while this refresh is in progress request the next one
+            refreshingForEvent = pendingEvent;
+            refreshingEventRefresh = pendingEvent ? pendingEventRefresh : null;
+            pendingEvent = false;
+            refreshStartNs = startNs;
+            snapshotNs = 0;
+            scannedSectionsCount = 0;
+            nextSection = 0;
+            refreshingArea = updateTrackedSections((ServerWorld) EntityVer.getWorld(npcEntity));
+            lastRefreshArea = refreshingArea;
+        }
+        ScanArea area = refreshingArea;
+        List<SectionSnapshot> snapshots = captureDirtySections(area, deadlineNs);
+        scannedSectionsCount += snapshots.size();
+        for (SectionSnapshot snapshot : snapshots) {
+            CompletableFuture<Void> scan = blockIndexService.submitScan(() -> area.index().applyScan(snapshot));
+            area.index().trackScan(snapshot.getSectionKey(), scan);
+            pendingScans.add(scan);
+        }
+        snapshotNs += System.nanoTime() - startNs;
+
+        if (nextSection >= area.sectionKeys().length) {
+            finishRefresh(area);
+        }
+    }
+
+    /**
+     * Publishes the area and updates the nearby blocks once all section scans of this refresh are done,
+     * so queries never read sections of the area that are not scanned yet.
+     */
+    private void finishRefresh(ScanArea area) {
+        refreshingArea = null;
+        refreshingForEvent = false;
+        CompletableFuture<Void> eventRefresh = refreshingEventRefresh;
+        refreshingEventRefresh = null;
+        RefreshStats stats = new RefreshStats(refreshStartNs, snapshotNs, loadedChunksCount,
+                scannedSectionsCount, trackedSections.size());
+        CompletableFuture<?>[] scans = pendingScans.toArray(CompletableFuture[]::new);
+        pendingScans.clear();
+        CompletableFuture.allOf(scans).thenCompose(ignored -> blockIndexService.submitScan(() -> {
+            if (stopped) {
+                return;
+            }
+            scanArea = area;
+            updateNearbyBlocks(area);
+            logChunkDiagnostics(area, stats);
+        })).whenComplete((ignored, error) -> {
+            if (eventRefresh != null) {
+                eventRefresh.complete(null);
             }
-            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
-            logChunkDiagnostics(elapsedMs, loadedChunksCount, scannedColumnsCount);
-        }, 0, chunkExpiryTime, TimeUnit.SECONDS);
+        });
     }
 
+    /**
+     * Finds the nearest blocks of the given type.
+     * Sections are visited by increasing distance and the search stops as soon as no block
+     * of the remaining sections can be closer than the blocks already found.
+     */
     public List<BlockData> getBlocksOfType(String type, int numberOfBlocks) {
-        List<BlockData> blocksFound = new ArrayList<>();
-
-        for (BlockData block : currentLoadedBlocks) {
-            if (blocksFound.size() >= numberOfBlocks) {
-                break;
-            } else if (type.equals(block.type())) {
-                blocksFound.add(block);
+        ScanArea area = scanArea;
+        BlockTypeTable blockTypes = blockIndexService.getBlockTypes();
+        int typeId = blockTypes.getTypeId(type);
+        BlockPos from = npcEntity.getBlockPos();
+        PriorityQueue<BlockDistance> nearest = new PriorityQueue<>(
+                Comparator.comparingLong(BlockDistance::squaredDistance).reversed());
+
+        if (area != null && typeId != BlockTypeTable.NO_TYPE && numberOfBlocks > 0) {
+            for (SectionDistance section : area.sectionsByDistanceTo(from)) {
+                if (nearest.size() >= numberOfBlocks && section.squaredDistance() > nearest.peek().squaredDistance()) {
+                    break;
+                }
+                SectionBlocks blocks = area.index().getBlocks(section.sectionKey());
+                int typeIndex = blocks.indexOfType(typeId);
+                if (typeIndex == -1) continue;
+
+                for (int i = blocks.start(typeIndex); i < blocks.end(typeIndex); i++) {
+                    long packedPos = blocks.positionAt(i);
+                    if (!area.contains(packedPos)) continue;
+
+                    long squaredDistance = squaredDistance(from, packedPos);
+                    if (nearest.size() < numberOfBlocks) {
+                        nearest.add(new BlockDistance(typeId, packedPos, squaredDistance));
+                    } else if (squaredDistance < nearest.peek().squaredDistance()) {
+                        nearest.poll();
+                        nearest.add(new BlockDistance(typeId, packedPos, squaredDistance));
+                    }
+                }
             }
         }
+
+        List<BlockData> blocksFound = nearest.stream()
+                .sorted(Comparator.comparingLong(BlockDistance::squaredDistance))
+                .map(block -> blockTypes.toBlockData(block.typeId(), block.packedPos()))
+                .toList();
         if (blocksFound.size() < numberOfBlocks) {
             LogUtil.error("Only %s blocks found of %s (wanted: %s)".formatted(
                     blocksFound.size(), type, numberOfBlocks));
@@ -88,120 +258,180 @@ public class ChunkManager {
     }
 
     /**
-     * Updates block data of every block type nearest block to the npc
+     * Updates block data of every block type nearest block to the npc.
+     * The blocks of a type in a section are skipped if the section is farther away
+     * than the nearest block already found for that type.
+     * Block data is only created for the nearest block of each type.
      */
-    private void updateNearbyBlocks() {
-        Map<String, BlockData> nearestBlocks = new HashMap<>();
-        this.nearbyBlocks.clear();
-
-        for (BlockData block : currentLoadedBlocks) {
-            String blockType = block.type();
-            if (!nearestBlocks.containsKey(blockType) ||
-                    isCloser(block.position(), nearestBlocks.get(blockType).position())) {
-                nearestBlocks.put(blockType, block);
+    private void updateNearbyBlocks(ScanArea area) {
+        BlockTypeTable blockTypes = blockIndexService.getBlockTypes();
+        BlockPos from = area.center();
+        int typesCount = blockTypes.size();
+        long[] nearestDistances = new long[typesCount];
+        long[] nearestPositions = new long[typesCount];
+        Arrays.fill(nearestDistances, Long.MAX_VALUE);
+
+        for (SectionDistance section : area.sectionsByDistanceTo(from)) {
+            SectionBlocks blocks = area.index().getBlocks(section.sectionKey());
+            for (int typeIndex = 0; typeIndex < blocks.typeCount(); typeIndex++) {
+                int typeId = blocks.typeIdAt(typeIndex);
+                // type registered after the arrays were sized by a concurrent scan
+                if (typeId >= typesCount || nearestDistances[typeId] <= section.squaredDistance()) continue;
+
+                for (int i = blocks.start(typeIndex); i < blocks.end(typeIndex); i++) {
+                    long packedPos = blocks.positionAt(i);
+                    if (!area.contains(packedPos)) continue;
+
+                    long squaredDistance = squaredDistance(from, packedPos);
+                    if (squaredDistance < nearestDistances[typeId]) {
+                        nearestDistances[typeId] = squaredDistance;
+                        nearestPositions[typeId] = packedPos;
+                    }
+                }
             }
         }
-        this.nearbyBlocks.addAll(nearestBlocks.values());
+
+        List<BlockDistance> nearestBlocks = new ArrayList<>();
+        for (int typeId = 0; typeId < typesCount; typeId++) {
+            if (nearestDistances[typeId] != Long.MAX_VALUE) {
+                nearestBlocks.add(new BlockDistance(typeId, nearestPositions[typeId], nearestDistances[typeId]));
+            }
+        }
+        this.nearbyBlocks = nearestBlocks.stream()
+                .sorted(Comparator.comparingLong(BlockDistance::squaredDistance))
+                .map(block -> blockTypes.toBlockData(block.typeId(), block.packedPos()))
+                .toList();
     }
 
     /**
-     * Updates all blocks in the chunks around the NPC
+     * Retains the sections in range of the NPC and releases the ones out of range.
+     * The blocks are read from the shared block index of the NPCs world, which only re-scans sections
+     * that are new or were marked dirty since their last scan.
+     * Must be called on the server thread.
+     *
+     * @return the area of the loaded sections in range
      */
-    private int updateAllBlocks() {
-        currentLoadedBlocks.clear();
-        scannedColumnsCountLastRefresh = 0;
-        World world = EntityVer.getWorld(npcEntity);
+    private ScanArea updateTrackedSections(ServerWorld world) {
+        WorldBlockIndex index = blockIndexService.getIndex(world);
+        if (index != trackedIndex) {
+            // npc changed the dimension
+            releaseTrackedSections();
+            trackedIndex = index;
+        }
         ChunkPos centerChunk = npcEntity.getChunkPos();
-        int centerX = npcEntity.getBlockPos().getX();
-        int centerZ = npcEntity.getBlockPos().getZ();
-        int loadedChunksCount = 0;
+        BlockPos center = npcEntity.getBlockPos();
+        int minY = Math.max(world.getBottomY(), center.getY() - verticalScanRange);
+        int maxY = Math.min(world.getBottomY() + world.getHeight(), center.getY() + verticalScanRange);
+        int minSectionY = ChunkSectionPos.getSectionCoord(minY);
+        int maxSectionY = ChunkSectionPos.getSectionCoord(maxY - 1);
+        Set<Long> sectionsInRange = new HashSet<>();
+        List<Long> loadedSections = new ArrayList<>();
+        loadedChunksCount = 0;
 
         for (int x = -chunkRadius; x <= chunkRadius; x++) {
             for (int z = -chunkRadius; z <= chunkRadius; z++) {
                 ChunkPos pos = new ChunkPos(centerChunk.x + x, centerChunk.z + z);
-
                 boolean isLoaded = world.isChunkLoaded(pos.x, pos.z);
-
                 if (isLoaded) {
                     loadedChunksCount++;
-                    ScanChunkResult result = scanChunk(pos, centerX, centerZ);
-                    currentLoadedBlocks.addAll(result.blocks());
-                    scannedColumnsCountLastRefresh += result.scannedColumnsCount();
+                }
+                for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+                    long sectionKey = ChunkSectionPos.asLong(pos.x, sectionY, pos.z);
+                    sectionsInRange.add(sectionKey);
+                    if (trackedSections.add(sectionKey)) {
+                        index.retain(sectionKey);
+                    }
+                    if (isLoaded) {
+                        loadedSections.add(sectionKey);
+                    }
                 }
             }
         }
-        return loadedChunksCount;
-    }
-
-    private ScanChunkResult scanChunk(ChunkPos chunk, int centerX, int centerZ) {
-        World world = EntityVer.getWorld(npcEntity);
-        BlockPos.Mutable pos = new BlockPos.Mutable();
-        int baseY = Math.max(0, npcEntity.getBlockPos().getY() - verticalScanRange);
-        int maxY = Math.min(world.getHeight(), npcEntity.getBlockPos().getY() + verticalScanRange);
-
-        List<BlockData> blocks = new ArrayList<>();
-        int scannedColumnsCount = 0;
 
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                int blockX = chunk.getStartX() + x;
-                int blockZ = chunk.getStartZ() + z;
+        Iterator<Long> iterator = trackedSections.iterator();
+        while (iterator.hasNext()) {
+            long sectionKey = iterator.next();
+            if (!sectionsInRange.contains(sectionKey)) {
+                index.release(sectionKey);
+                iterator.remove();
+            }
+        }
+        return new ScanArea(index, center, contextRangeInBlocks, minY, maxY,
+                loadedSections.stream().mapToLong(Long::longValue).toArray());
+    }
 
-                if (Math.abs(blockX - centerX) > contextRangeInBlocks || Math.abs(blockZ - centerZ) > contextRangeInBlocks) {
-                    continue;
+    /**
+     * Copies the dirty sections of the area, starting at the next section, until the deadline is reached.
+     * At least one section is copied per call, so every refresh makes progress.
+     * Sections that are still scanned for another NPC are not copied again, the refresh waits for their scans instead.
+     * Must be called on the server thread.
+     */
+    private List<SectionSnapshot> captureDirtySections(ScanArea area, long deadlineNs) {
+        List<SectionSnapshot> snapshots = new ArrayList<>();
+        SectionSnapshot.Batch batch = new SectionSnapshot.Batch(area.index().getWorld());
+        long[] sectionKeys = area.sectionKeys();
+        while (nextSection < sectionKeys.length) {
+            long sectionKey = sectionKeys[nextSection++];
+            SectionSnapshot snapshot = area.index().captureSection(sectionKey, batch);
+            if (snapshot == null) {
+                CompletableFuture<Void> inFlight = area.index().getPendingScan(sectionKey);
+                if (!inFlight.isDone()) {
+                    pendingScans.add(inFlight);
                 }
-
-                scannedColumnsCount++;
-                pos.set(blockX, baseY, blockZ);
-                WorldChunk currentChunk = world.getWorldChunk(pos);
-                for (int y = baseY; y < maxY; y++) {
-                    pos.set(blockX, y, blockZ);
-                    BlockState blockState = currentChunk.getBlockState(pos);
-                    String blockType = blockState.getBlock()
-                            .getName().getString()
-                            .toLowerCase().replace(" ", "_");
-
-                    if (blockType.contains("air")) continue;
-
-                    if (isAccessible(pos, currentChunk)) {
-                        blocks.add(new BlockData(blockType, pos.toImmutable(),
-                                getMiningLevel(blockState), getToolNeeded(blockState)));
-                    }
+            } else {
+                snapshots.add(snapshot);
+                if (System.nanoTime() >= deadlineNs) {
+                    break;
                 }
             }
         }
-        return new ScanChunkResult(blocks, scannedColumnsCount);
+        return snapshots;
     }
 
-    private boolean isAccessible(BlockPos pos, WorldChunk chunk) {
-        for (Direction dir : Direction.values()) {
-            if (chunk.getBlockState(pos.offset(dir)).isAir()) {
-                return true;
-            }
+    private void releaseTrackedSections() {
+        if (trackedIndex != null) {
+            trackedSections.forEach(trackedIndex::release);
         }
-        return false;
+        trackedSections.clear();
     }
 
-    private boolean isCloser(BlockPos pos1, BlockPos pos2) {
-        double dist1 = npcEntity.getBlockPos().getSquaredDistance(pos1);
-        double dist2 = npcEntity.getBlockPos().getSquaredDistance(pos2);
-        return dist1 < dist2;
+    private static long squaredDistance(BlockPos from, long packedPos) {
+        long dx = BlockPos.unpackLongX(packedPos) - from.getX();
+        long dy = BlockPos.unpackLongY(packedPos) - from.getY();
+        long dz = BlockPos.unpackLongZ(packedPos) - from.getZ();
+        return dx * dx + dy * dy + dz * dz;
     }
 
     public void stopService() {
-        this.threadPool.shutdownNow();
+        blockIndexService.unregister(this);
+        synchronized (this) {
+            stopped = true;
+            pendingEventRefresh.complete(null);
+            if (refreshingEventRefresh != null) {
+                refreshingEventRefresh.complete(null);
+            }
+            refreshingArea = null;
+            pendingScans.clear();
+            releaseTrackedSections();
+        }
     }
 
-    private void logChunkDiagnostics(long elapsedMs, int loadedChunksCount, int scannedColumnsCount) {
+    private void logChunkDiagnostics(ScanArea area, RefreshStats stats) {
         if (!LogUtil.isVerboseEnabled()) {
             return;
         }
         String npcName = npcEntity.getName().getString();
         String threadName = Thread.currentThread().getName();
-        int loadedBlocks = currentLoadedBlocks.size();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stats.startNs());
+        long snapshotMs = TimeUnit.NANOSECONDS.toMillis(stats.snapshotNs());
+        int loadedBlocks = 0;
+        for (long sectionKey : area.sectionKeys()) {
+            loadedBlocks += area.index().getBlocks(sectionKey).size();
+        }
         int nearbyTypes = nearbyBlocks.size();
-        String baseDetails = "area=chunk npc=%s thread=%s loaded_chunks=%d scanned_columns=%d loaded_blocks=%d nearby_types=%d"
-                .formatted(npcName, threadName, loadedChunksCount, scannedColumnsCount, loadedBlocks, nearbyTypes);
+        String baseDetails = "area=chunk npc=%s thread=%s loaded_chunks=%d scanned_sections=%d tracked_sections=%d indexed_sections=%d loaded_blocks=%d nearby_types=%d snapshot_ms=%d"
+                .formatted(npcName, threadName, stats.loadedChunksCount(), stats.scannedSectionsCount(), stats.trackedSectionsCount(),
+                        area.index().getIndexedSectionsCount(), loadedBlocks, nearbyTypes, snapshotMs);
 
         if (elapsedMs > 250) {
             LogUtil.warnRateLimited(
@@ -224,14 +454,58 @@ public class ChunkManager {
                     DIAG_RATE_LIMIT_MS
             );
         }
-        if (!"Server thread".equals(threadName)) {
+        if (snapshotMs > 50) {
             LogUtil.warnRateLimited(
-                    "chunk.thread.off_server." + npcName,
-                    "[SB-DIAG] " + baseDetails + " metric=off_thread_world_scan value=1",
-                    THREAD_DIAG_RATE_LIMIT_MS
+                    "chunk.snapshot.slow." + npcName,
+                    "[SB-DIAG] " + baseDetails + " metric=snapshot_ms value=" + snapshotMs,
+                    DIAG_RATE_LIMIT_MS
             );
         }
     }
 
-    private record ScanChunkResult(List<BlockData> blocks, int scannedColumnsCount) {}
+    private record RefreshStats(long startNs, long snapshotNs, int loadedChunksCount, int scannedSectionsCount, int trackedSectionsCount) {}
+
+    private record BlockDistance(int typeId, long packedPos, long squaredDistance) {}
+
+    private record SectionDistance(long sectionKey, long squaredDistance) {}
+
+    /**
+     * Sections and block bounds of the last refresh.
+     */
+    private record ScanArea(WorldBlockIndex index, BlockPos center, int range, int minY, int maxY, long[] sectionKeys) {
+
+        private boolean contains(long packedPos) {
+            int y = BlockPos.unpackLongY(packedPos);
+            return y >= minY && y < maxY
+                    && Math.abs(BlockPos.unpackLongX(packedPos) - center.getX()) <= range
+                    && Math.abs(BlockPos.unpackLongZ(packedPos) - center.getZ()) <= range;
+        }
+
+        /**
+         * @return the sections sorted by the smallest squared distance any block of them in the area can have to the position
+         */
+        private List<SectionDistance> sectionsByDistanceTo(BlockPos from) {
+            List<SectionDistance> sections = new ArrayList<>(sectionKeys.length);
+            for (long sectionKey : sectionKeys) {
+                int startX = Math.max(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey)), center.getX() - range);
+                int endX = Math.min(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey)) + 15, center.getX() + range);
+                int startY = Math.max(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey)), minY);
+                int endY = Math.min(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey)) + 15, maxY - 1);
+                int startZ = Math.max(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey)), center.getZ() - range);
+                int endZ = Math.min(ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey)) + 15, center.getZ() + range);
+                long dx = axisDistance(from.getX(), startX, endX);
+                long dy = axisDistance(from.getY(), startY, endY);
+                long dz = axisDistance(from.getZ(), startZ, endZ);
+                sections.add(new SectionDistance(sectionKey, dx * dx + dy * dy + dz * dz));
+            }
+            sections.sort(Comparator.comparingLong(SectionDistance::squaredDistance));
+            return sections;
+        }
+
+        private static long axisDistance(int value, int start, int end) {
+            if (value < start) return start - value;
+            if (value > end) return value - end;
+            return 0;
+        }
+    }
 }
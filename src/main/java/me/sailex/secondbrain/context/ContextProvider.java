@@ -1,78 +1,140 @@
 package me.sailex.secondbrain.context;
 
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import me.sailex.altoclef.multiversion.EntityVer;
 import me.sailex.secondbrain.config.BaseConfig;
 import me.sailex.secondbrain.model.context.*;
+import me.sailex.secondbrain.thread.NPCExecutors;
 import me.sailex.secondbrain.util.LogUtil;
 import me.sailex.secondbrain.util.MCDataUtil;
 import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityType;
 import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
 
 /**
  * Generates the context for the LLM requests based on the NPCs world environment.
+ * The state, inventory and nearby entities of the NPC are read in one snapshot on the server thread,
+ * so they belong to the same tick. Only raw fields are read there, the snapshot is formatted off the server thread,
+ * the inventory and the entities in parallel. Contexts built within a short time are reused.
  */
 public class ContextProvider {
 	private static final long DIAG_RATE_LIMIT_MS = 5000L;
+	private static final long CONTEXT_TTL_NS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long SNAPSHOT_TIMEOUT_MS = 5000L;
+	private static final int INVENTORY_SIZE = 41;
+	private static final ExecutorService STAGE_EXECUTOR = NPCExecutors.newTaskExecutor("context");
 
 	private final ServerPlayerEntity npcEntity;
 	private final ChunkManager chunkManager;
-	private WorldContext cachedContext;
+	private volatile WorldContext cachedContext;
+	private volatile long cachedContextNs;
 
-	public ContextProvider(ServerPlayerEntity npcEntity, BaseConfig config) {
-		this(npcEntity, config, Math.max(1, config.getContextChunkRadius()) * 16);
+	public ContextProvider(ServerPlayerEntity npcEntity, BaseConfig config, BlockIndexService blockIndexService) {
+		this(npcEntity, config, blockIndexService, Math.max(1, config.getContextChunkRadius()) * 16);
 	}
 
-	public ContextProvider(ServerPlayerEntity npcEntity, BaseConfig config, int contextRangeInBlocks) {
+	public ContextProvider(ServerPlayerEntity npcEntity, BaseConfig config, BlockIndexService blockIndexService, int contextRangeInBlocks) {
 		this.npcEntity = npcEntity;
-		this.chunkManager = new ChunkManager(npcEntity, Math.max(1, contextRangeInBlocks), config.getContextVerticalScanRange(), config.getChunkExpiryTime());
+		this.chunkManager = new ChunkManager(npcEntity, blockIndexService, Math.max(1, contextRangeInBlocks), config.getContextVerticalScanRange(), config.getChunkExpiryTime());
 		buildContext();
 	}
 
 	/**
-	 * Builds a context of the NPC entity world environment.
+	 * Builds a context of the NPC entity world environment or returns the last one if it was built within the TTL.
+	 *
+	 * @throws IllegalStateException if the snapshot of the NPC could not be captured on the server thread
 	 */
 	public WorldContext buildContext() {
-		synchronized (this) {
-			long startNs = System.nanoTime();
-			long stateStartNs = System.nanoTime();
-			StateData state = getNpcState();
-			long stateMs = millisSince(stateStartNs);
-
-			long inventoryStartNs = System.nanoTime();
-			InventoryData inventory = getInventoryState();
-			long inventoryMs = millisSince(inventoryStartNs);
-
-			long entitiesStartNs = System.nanoTime();
-			NearbyEntitiesSnapshot nearbyEntities = getNearbyEntitiesSnapshot();
-			long entitiesMs = millisSince(entitiesStartNs);
-
-			WorldContext context = new WorldContext(
-					state,
-					inventory,
-					chunkManager.getNearbyBlocks(),
-					nearbyEntities.entities()
-			);
-//			chunkManager.getNearbyBlocks().forEach(blockData -> LogUtil.debugInChat(blockData.toString()));
-			this.cachedContext = context;
-			long totalMs = millisSince(startNs);
-			logContextDiagnostics(totalMs, stateMs, inventoryMs, entitiesMs, nearbyEntities.entityCount(), nearbyEntities.topEntitiesSummary());
-			return context;
+		WorldContext cached = cachedContext;
+		// blocks published since the context was built, e.g. by the refresh of an event, invalidate it
+		if (cached != null && cached.nearbyBlocks() == chunkManager.getNearbyBlocks()
+				&& System.nanoTime() - cachedContextNs < CONTEXT_TTL_NS) {
+			return cached;
+		}
+		long startNs = System.nanoTime();
+		NpcSnapshot snapshot = captureSnapshot();
+		long snapshotMs = millisSince(startNs);
+
+		// the entities are formatted on the stage executor while the inventory is formatted on the calling thread
+		CompletableFuture<Timed<NearbyEntitiesSnapshot>> entitiesStage = CompletableFuture.supplyAsync(
+				() -> timed(() -> getNearbyEntitiesSnapshot(snapshot.entities())), STAGE_EXECUTOR);
+		Timed<InventoryData> inventoryStage = timed(() -> getInventoryState(snapshot.inventory()));
+		Timed<NearbyEntitiesSnapshot> entitiesResult = entitiesStage.join();
+		InventoryData inventory = inventoryStage.value();
+		long inventoryMs = inventoryStage.millis();
+		NearbyEntitiesSnapshot nearbyEntities = entitiesResult.value();
+		long entitiesMs = entitiesResult.millis();
+
+		WorldContext context = new WorldContext(
+				snapshot.state(),
+				inventory,
+				chunkManager.getNearbyBlocks(),
+				nearbyEntities.entities()
+		);
+//		chunkManager.getNearbyBlocks().forEach(blockData -> LogUtil.debugInChat(blockData.toString()));
+		this.cachedContextNs = System.nanoTime();
+		this.cachedContext = context;
+		long totalMs = millisSince(startNs);
+		logContextDiagnostics(totalMs, snapshotMs, inventoryMs, entitiesMs, nearbyEntities.entityCount(), nearbyEntities.topEntitiesSummary());
+		return context;
+	}
+
+	/**
+	 * Captures the state, inventory and nearby entities of the NPC on the server thread,
+	 * waiting for it if called from another thread.
+	 */
+	private NpcSnapshot captureSnapshot() {
+		MinecraftServer server = EntityVer.getWorld(npcEntity).getServer();
+		if (server == null || server.isOnThread()) {
+			return readSnapshot();
+		}
+		try {
+			return server.submit(this::readSnapshot).get(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while capturing the context snapshot", e);
+		} catch (ExecutionException | TimeoutException e) {
+			throw new IllegalStateException("Could not capture the context snapshot on the server thread", e);
 		}
 	}
 
-	private StateData getNpcState() {
-		return new StateData(
+	/**
+	 * Only reads the raw fields, everything is formatted off the server thread.
+	 */
+	private NpcSnapshot readSnapshot() {
+		PlayerInventory playerInventory = npcEntity.getInventory();
+		List<SlotSnapshot> inventory = new ArrayList<>();
+		for (int i = 0; i < INVENTORY_SIZE; i++) {
+			ItemStack stack = playerInventory.getStack(i);
+			if (!stack.isEmpty()) {
+				inventory.add(new SlotSnapshot(i, stack.getItem(), stack.getCount()));
+			}
+		}
+		List<EntitySnapshot> entities = new ArrayList<>();
+		for (Entity entity : MCDataUtil.getNearbyEntities(npcEntity)) {
+			entities.add(new EntitySnapshot(entity.getId(), entity.getName(), entity.getType(), entity.isPlayer()));
+		}
+		StateData state = new StateData(
 				npcEntity.getBlockPos(),
 				npcEntity.getHealth(),
 				npcEntity.getHungerManager().getFoodLevel(),
 				MCDataUtil.getBiome(npcEntity));
+		return new NpcSnapshot(state, inventory, entities);
 	}
 
-	private InventoryData getInventoryState() {
-		PlayerInventory inventory = npcEntity.getInventory();
+	private InventoryData getInventoryState(List<SlotSnapshot> inventory) {
 		return new InventoryData(
 				// armour
 				getItemsInRange(inventory, 36, 39),
@@ -85,34 +147,28 @@ public class ContextProvider {
 		);
 	}
 
-	private List<ItemData> getItemsInRange(PlayerInventory inventory, int start, int end) {
+	private List<ItemData> getItemsInRange(List<SlotSnapshot> inventory, int start, int end) {
 		List<ItemData> items = new ArrayList<>();
-		for (int i = start; i <= end; i++) {
-			ItemStack stack = inventory.getStack(i);
-			addItemData(stack, items, i);
+		for (SlotSnapshot slot : inventory) {
+			if (slot.slot() >= start && slot.slot() <= end) {
+				items.add(new ItemData(getBlockName(slot.item()), slot.count(), slot.slot()));
+			}
 		}
 		return items;
 	}
 
-	private void addItemData(ItemStack stack, List<ItemData> items, int slot) {
-		if (!stack.isEmpty()) {
-			items.add(new ItemData(getBlockName(stack), stack.getCount(), slot));
-		}
-	}
-
-	private String getBlockName(ItemStack stack) {
-		String translationKey = stack.getItem().getTranslationKey();
+	private String getBlockName(Item item) {
+		String translationKey = item.getTranslationKey();
 		return translationKey.substring(translationKey.lastIndexOf(".") + 1);
 	}
 
-	private NearbyEntitiesSnapshot getNearbyEntitiesSnapshot() {
+	private NearbyEntitiesSnapshot getNearbyEntitiesSnapshot(List<EntitySnapshot> entities) {
 		List<EntityData> nearbyEntities = new ArrayList<>();
-		List<Entity> entities = MCDataUtil.getNearbyEntities(npcEntity);
 		Map<String, Integer> typeCounts = new HashMap<>();
 		entities.forEach(entity ->
 			{
-				nearbyEntities.add(new EntityData(entity.getId(), entity.getName().getString(), entity.isPlayer()));
-				String typeId = entity.getType().toString();
+				nearbyEntities.add(new EntityData(entity.id(), entity.name().getString(), entity.player()));
+				String typeId = entity.type().toString();
 				typeCounts.merge(typeId, 1, Integer::sum);
 			}
 		);
@@ -133,7 +189,7 @@ public class ContextProvider {
 		return cachedContext;
 	}
 
-	private void logContextDiagnostics(long totalMs, long stateMs, long inventoryMs, long entitiesMs, int entityCount, String topEntitiesSummary) {
+	private void logContextDiagnostics(long totalMs, long snapshotMs, long inventoryMs, long entitiesMs, int entityCount, String topEntitiesSummary) {
 		if (!LogUtil.isVerboseEnabled()) {
 			return;
 		}
@@ -143,8 +199,8 @@ public class ContextProvider {
 		if (totalMs > 100) {
 			LogUtil.warnRateLimited(
 					"context.build.slow." + npcName,
-					"[SB-DIAG] area=context npc=%s thread=%s metric=context_ms value=%d state_ms=%d inventory_ms=%d entities_ms=%d entity_count=%d nearby_types=%d"
-							.formatted(npcName, threadName, totalMs, stateMs, inventoryMs, entitiesMs, entityCount, chunkManager.getNearbyBlocks().size()),
+					"[SB-DIAG] area=context npc=%s thread=%s metric=context_ms value=%d snapshot_ms=%d inventory_ms=%d entities_ms=%d entity_count=%d nearby_types=%d"
+							.formatted(npcName, threadName, totalMs, snapshotMs, inventoryMs, entitiesMs, entityCount, chunkManager.getNearbyBlocks().size()),
 					DIAG_RATE_LIMIT_MS
 			);
 		}
@@ -162,5 +218,19 @@ public class ContextProvider {
 		return (System.nanoTime() - startNs) / 1_000_000L;
 	}
 
+	private <T> Timed<T> timed(Supplier<T> stage) {
+		long stageStartNs = System.nanoTime();
+		T value = stage.get();
+		return new Timed<>(value, millisSince(stageStartNs));
+	}
+
+	private record NpcSnapshot(StateData state, List<SlotSnapshot> inventory, List<EntitySnapshot> entities) {}
+
+	private record EntitySnapshot(int id, Text name, EntityType<?> type, boolean player) {}
+
+	private record Timed<T>(T value, long millis) {}
+
+	private record SlotSnapshot(int slot, Item item, int count) {}
+
 	private record NearbyEntitiesSnapshot(List<EntityData> entities, int entityCount, String topEntitiesSummary) {}
 }
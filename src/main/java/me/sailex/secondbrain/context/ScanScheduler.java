@@ -0,0 +1,66 @@
+package me.sailex.secondbrain.context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Slices the block scans of all NPCs across server ticks.
+ * Every tick the chunk managers get a share of a fixed time budget on the server thread, one after another.
+ * Chunk managers of NPCs with pending events are served first, the others in round-robin order,
+ * so no NPC starves and many active NPCs never add up to a tick spike.
+ */
+public class ScanScheduler {
+
+    private static final long TICK_BUDGET_NS = 2_000_000L;
+
+    private final List<ChunkManager> chunkManagers = new ArrayList<>();
+    private int nextChunkManager;
+
+    public synchronized void register(ChunkManager chunkManager) {
+        chunkManagers.add(chunkManager);
+    }
+
+    public synchronized void unregister(ChunkManager chunkManager) {
+        chunkManagers.remove(chunkManager);
+    }
+
+    /**
+     * Runs scan steps until the budget of this tick is used up. Must be called on the server thread.
+     */
+    public void onTick() {
+        List<ChunkManager> queue = getScanQueue();
+        if (queue.isEmpty()) {
+            return;
+        }
+        long deadlineNs = System.nanoTime() + TICK_BUDGET_NS;
+        for (ChunkManager chunkManager : queue) {
+            if (System.nanoTime() >= deadlineNs) {
+                break;
+            }
+            chunkManager.runScanStep(deadlineNs);
+        }
+    }
+
+    /**
+     * @return the chunk managers that need to scan, the ones with pending events first,
+     * then the others starting at the round-robin cursor
+     */
+    private synchronized List<ChunkManager> getScanQueue() {
+        List<ChunkManager> prioritized = new ArrayList<>();
+        List<ChunkManager> others = new ArrayList<>();
+        int size = chunkManagers.size();
+        for (int i = 0; i < size; i++) {
+            ChunkManager chunkManager = chunkManagers.get((nextChunkManager + i) % size);
+            if (!chunkManager.needsScan()) continue;
+
+            if (chunkManager.hasPendingEvent()) {
+                prioritized.add(chunkManager);
+            } else {
+                others.add(chunkManager);
+            }
+        }
+        nextChunkManager = size == 0 ? 0 : (nextChunkManager + 1) % size;
+        prioritized.addAll(others);
+        return prioritized;
+    }
+}
@@ -0,0 +1,100 @@
+package me.sailex.secondbrain.context;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Accessible blocks of one chunk section, stored as packed positions bucketed by block type id.
+ * The positions of the type at index {@code i} are {@code positions[offsets[i]]} to {@code positions[offsets[i + 1] - 1]}.
+ */
+public final class SectionBlocks {
+
+    public static final SectionBlocks EMPTY = new SectionBlocks(new int[0], new int[] {0}, new long[0]);
+
+    private final int[] typeIds;
+    private final int[] offsets;
+    private final long[] positions;
+
+    private SectionBlocks(int[] typeIds, int[] offsets, long[] positions) {
+        this.typeIds = typeIds;
+        this.offsets = offsets;
+        this.positions = positions;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public int typeCount() {
+        return typeIds.length;
+    }
+
+    public int typeIdAt(int typeIndex) {
+        return typeIds[typeIndex];
+    }
+
+    /**
+     * @return the index of the type in this section or -1 if the section contains no block of it
+     */
+    public int indexOfType(int typeId) {
+        for (int i = 0; i < typeIds.length; i++) {
+            if (typeIds[i] == typeId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int start(int typeIndex) {
+        return offsets[typeIndex];
+    }
+
+    public int end(int typeIndex) {
+        return offsets[typeIndex + 1];
+    }
+
+    public long positionAt(int index) {
+        return positions[index];
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final Int2ObjectOpenHashMap<LongArrayList> positionsByType = new Int2ObjectOpenHashMap<>();
+        private int size;
+
+        public void add(int typeId, long packedPos) {
+            LongArrayList typePositions = positionsByType.get(typeId);
+            if (typePositions == null) {
+                typePositions = new LongArrayList();
+                positionsByType.put(typeId, typePositions);
+            }
+            typePositions.add(packedPos);
+            size++;
+        }
+
+        public SectionBlocks build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            int[] typeIds = new int[positionsByType.size()];
+            int[] offsets = new int[typeIds.length + 1];
+            long[] positions = new long[size];
+            int typeIndex = 0;
+            int offset = 0;
+            for (Int2ObjectMap.Entry<LongArrayList> entry : positionsByType.int2ObjectEntrySet()) {
+                LongArrayList typePositions = entry.getValue();
+                typeIds[typeIndex] = entry.getIntKey();
+                offsets[typeIndex] = offset;
+                typePositions.getElements(0, positions, offset, typePositions.size());
+                offset += typePositions.size();
+                typeIndex++;
+            }
+            offsets[typeIndex] = offset;
+            return new SectionBlocks(typeIds, offsets, positions);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package me.sailex.secondbrain.context;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.chunk.PalettedContainer;
+
+/**
+ * Scans a chunk section for accessible blocks (blocks with at least one air neighbour).
+ * The block state palette of the section is read first: sections containing only air-like blocks are skipped,
+ * sections without any air only check the blocks on their faces against the neighbouring sections,
+ * and only sections containing air are walked block by block.
+ * Those are walked surface first: blocks at or above the world surface of their column are known to be air
+ * without reading them, and every other block state is read once into an air mask
+ * that the accessibility checks are answered from.
+ * Only the sky air above the surface is skipped this way. Air below the surface, e.g. of caves,
+ * is found by reading the blocks, there is no descent along cave boundaries.
+ * The scanner only reads {@link SectionSnapshot}s, so it is safe to use off the server thread.
+ */
+public class SectionScanner {
+
+    private static final int SECTION_SIZE = 16;
+    private static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    private final BlockTypeTable blockTypes;
+
+    public SectionScanner(BlockTypeTable blockTypes) {
+        this.blockTypes = blockTypes;
+    }
+
+    public SectionBlocks scan(SectionSnapshot snapshot) {
+        if (snapshot.isEmpty()) {
+            return SectionBlocks.EMPTY;
+        }
+        PalettedContainer<BlockState> states = snapshot.getStates();
+
+        // only the palette is read here, the blocks are not counted or walked before it is known they are needed
+        if (!states.hasAny(state -> blockTypes.getTypeId(state) != BlockTypeTable.NO_TYPE)) {
+            return SectionBlocks.EMPTY;
+        }
+        // the type id of every distinct state is resolved once, on its first accessible block
+        Reference2IntOpenHashMap<BlockState> typeIds = new Reference2IntOpenHashMap<>();
+        typeIds.defaultReturnValue(UNRESOLVED);
+
+        SectionView view = new SectionView(snapshot);
+        if (!states.hasAny(BlockState::isAir)) {
+            return scanSolidSection(view, typeIds);
+        }
+        return scanMixedSection(view, typeIds);
+    }
+
+    /**
+     * The section contains no air, so only blocks on a face
+     * that borders air in the neighbouring section can be accessible.
+     */
+    private SectionBlocks scanSolidSection(SectionView view, Reference2IntOpenHashMap<BlockState> typeIds) {
+        boolean[] accessible = new boolean[SECTION_VOLUME];
+        boolean anyAccessible = false;
+
+        for (Direction dir : DIRECTIONS) {
+            NeighbourFill fill = view.getNeighbourFill(dir);
+            if (fill == NeighbourFill.SOLID) {
+                continue;
+            }
+            for (int a = 0; a < SECTION_SIZE; a++) {
+                for (int b = 0; b < SECTION_SIZE; b++) {
+                    int x = faceX(dir, a, b);
+                    int y = faceY(dir, a, b);
+                    int z = faceZ(dir, a, b);
+                    if (fill == NeighbourFill.AIR || view.isAir(x + dir.getOffsetX(), y + dir.getOffsetY(), z + dir.getOffsetZ())) {
+                        accessible[index(x, y, z)] = true;
+                        anyAccessible = true;
+                    }
+                }
+            }
+        }
+        if (!anyAccessible) {
+            return SectionBlocks.EMPTY;
+        }
+
+        SectionBlocks.Builder blocks = SectionBlocks.builder();
+        for (int y = 0; y < SECTION_SIZE; y++) {
+            for (int z = 0; z < SECTION_SIZE; z++) {
+                for (int x = 0; x < SECTION_SIZE; x++) {
+                    if (!accessible[index(x, y, z)]) continue;
+
+                    int typeId = getTypeId(typeIds, view.states.get(x, y, z));
+                    if (typeId != BlockTypeTable.NO_TYPE) {
+                        blocks.add(typeId, view.toPackedPos(x, y, z));
+                    }
+                }
+            }
+        }
+        return blocks.build();
+    }
+
+    private SectionBlocks scanMixedSection(SectionView view, Reference2IntOpenHashMap<BlockState> typeIds) {
+        long[] airMask = buildAirMask(view);
+        SectionBlocks.Builder blocks = SectionBlocks.builder();
+        for (int y = 0; y < SECTION_SIZE; y++) {
+            for (int z = 0; z < SECTION_SIZE; z++) {
+                for (int x = 0; x < SECTION_SIZE; x++) {
+                    if (isSet(airMask, index(x, y, z)) || !isAccessible(view, airMask, x, y, z)) continue;
+
+                    int typeId = getTypeId(typeIds, view.states.get(x, y, z));
+                    if (typeId != BlockTypeTable.NO_TYPE) {
+                        blocks.add(typeId, view.toPackedPos(x, y, z));
+                    }
+                }
+            }
+        }
+        return blocks.build();
+    }
+
+    /**
+     * Blocks at or above the world surface of their column are set without reading them,
+     * all blocks below it are read, as caves don't show in the heightmap.
+     *
+     * @return a bit per block of the section that is set if the block is air
+     */
+    private long[] buildAirMask(SectionView view) {
+        long[] airMask = new long[SECTION_VOLUME / Long.SIZE];
+        for (int z = 0; z < SECTION_SIZE; z++) {
+            for (int x = 0; x < SECTION_SIZE; x++) {
+                int surfaceY = view.getSurfaceY(x, z);
+                for (int y = 0; y < SECTION_SIZE; y++) {
+                    if (y >= surfaceY || view.states.get(x, y, z).isAir()) {
+                        int index = index(x, y, z);
+                        airMask[index >>> 6] |= 1L << index;
+                    }
+                }
+            }
+        }
+        return airMask;
+    }
+
+    private int getTypeId(Reference2IntOpenHashMap<BlockState> typeIds, BlockState state) {
+        int typeId = typeIds.getInt(state);
+        if (typeId == UNRESOLVED) {
+            typeId = blockTypes.getTypeId(state);
+            typeIds.put(state, typeId);
+        }
+        return typeId;
+    }
+
+    private boolean isAccessible(SectionView view, long[] airMask, int x, int y, int z) {
+        for (Direction dir : DIRECTIONS) {
+            int neighbourX = x + dir.getOffsetX();
+            int neighbourY = y + dir.getOffsetY();
+            int neighbourZ = z + dir.getOffsetZ();
+            boolean isAir = isInSection(neighbourX, neighbourY, neighbourZ)
+                    ? isSet(airMask, index(neighbourX, neighbourY, neighbourZ))
+                    : view.isAir(neighbourX, neighbourY, neighbourZ);
+            if (isAir) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInSection(int x, int y, int z) {
+        return ((x | y | z) & ~(SECTION_SIZE - 1)) == 0;
+    }
+
+    private static boolean isSet(long[] mask, int index) {
+        return (mask[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static int index(int x, int y, int z) {
+        return (y << 8) | (z << 4) | x;
+    }
+
+    // maps the face coordinates (a, b) of a section face to local section coordinates
+    private static int faceX(Direction dir, int a, int b) {
+        return switch (dir) {
+            case WEST -> 0;
+            case EAST -> SECTION_SIZE - 1;
+            default -> a;
+        };
+    }
+
+    private static int faceY(Direction dir, int a, int b) {
+        return switch (dir) {
+            case DOWN -> 0;
+            case UP -> SECTION_SIZE - 1;
+            case WEST, EAST -> a;
+            default -> b;
+        };
+    }
+
+    private static int faceZ(Direction dir, int a, int b) {
+        return switch (dir) {
+            case NORTH -> 0;
+            case SOUTH -> SECTION_SIZE - 1;
+            default -> b;
+        };
+    }
+
+    private enum NeighbourFill {
+        AIR,
+        SOLID,
+        MIXED
+    }
+
+    /**
+     * Block states of a section and its six neighbouring sections.
+     * Neighbours outside the world height count as air, neighbours in unloaded chunks as solid.
+     */
+    private static class SectionView {
+        private final int startX;
+        private final int startY;
+        private final int startZ;
+        private final SectionSnapshot snapshot;
+        private final PalettedContainer<BlockState> states;
+        private final PalettedContainer<BlockState>[] neighbours;
+        private final NeighbourFill[] neighbourFills = new NeighbourFill[DIRECTIONS.length];
+
+        @SuppressWarnings("unchecked")
+        private SectionView(SectionSnapshot snapshot) {
+            this.snapshot = snapshot;
+            long sectionKey = snapshot.getSectionKey();
+            this.startX = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey));
+            this.startY = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey));
+            this.startZ = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey));
+            this.states = snapshot.getStates();
+            this.neighbours = new PalettedContainer[DIRECTIONS.length];
+
+            for (Direction dir : DIRECTIONS) {
+                PalettedContainer<BlockState> neighbour = snapshot.getNeighbour(dir);
+                // a missing vertical neighbour is outside the world, a missing horizontal one is in an unloaded chunk
+                NeighbourFill fill = dir.getOffsetY() != 0 ? NeighbourFill.AIR : NeighbourFill.SOLID;
+                if (neighbour != null) {
+                    if (!neighbour.hasAny(state -> !state.isAir())) {
+                        fill = NeighbourFill.AIR;
+                    } else if (!neighbour.hasAny(BlockState::isAir)) {
+                        fill = NeighbourFill.SOLID;
+                    } else {
+                        fill = NeighbourFill.MIXED;
+                    }
+                }
+                neighbours[dir.ordinal()] = neighbour;
+                neighbourFills[dir.ordinal()] = fill;
+            }
+        }
+
+        /**
+         * @return the local y of the column from which on all blocks of the section are air,
+         * can be below 0 or above 15
+         */
+        private int getSurfaceY(int x, int z) {
+            return snapshot.getSurfaceHeight(x, z) - startY;
+        }
+
+        private NeighbourFill getNeighbourFill(Direction dir) {
+            return neighbourFills[dir.ordinal()];
+        }
+
+        /**
+         * @param x local x, may be one block outside the section
+         * @param y local y, may be one block outside the section
+         * @param z local z, may be one block outside the section
+         */
+        private boolean isAir(int x, int y, int z) {
+            Direction dir;
+            if (x < 0) dir = Direction.WEST;
+            else if (x >= SECTION_SIZE) dir = Direction.EAST;
+            else if (y < 0) dir = Direction.DOWN;
+            else if (y >= SECTION_SIZE) dir = Direction.UP;
+            else if (z < 0) dir = Direction.NORTH;
+            else if (z >= SECTION_SIZE) dir = Direction.SOUTH;
+            else return states.get(x, y, z).isAir();
+
+            NeighbourFill fill = neighbourFills[dir.ordinal()];
+            if (fill != NeighbourFill.MIXED) {
+                return fill == NeighbourFill.AIR;
+            }
+            return neighbours[dir.ordinal()].get(x & 15, y & 15, z & 15).isAir();
+        }
+
+        private long toPackedPos(int x, int y, int z) {
+            return BlockPos.asLong(startX + x, startY + y, startZ + z);
+        }
+    }
+}
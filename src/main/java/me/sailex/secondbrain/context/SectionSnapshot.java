@@ -0,0 +1,140 @@
+package me.sailex.secondbrain.context;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Copy of the block states of a chunk section and its six neighbouring sections
+ * and of the world surface heights of its chunk.
+ * It is captured on the server thread and can then be scanned on any thread without touching the world.
+ * Snapshots captured in the same {@link Batch} share their copies, so every section is only copied once per batch,
+ * however many of its neighbours are captured with it.
+ */
+public final class SectionSnapshot {
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final long sectionKey;
+    private final long version;
+    private final PalettedContainer<BlockState> states;
+    private final PalettedContainer<BlockState>[] neighbours;
+    private final int[] surfaceHeights;
+
+    private SectionSnapshot(
+        long sectionKey,
+        long version,
+        PalettedContainer<BlockState> states,
+        PalettedContainer<BlockState>[] neighbours,
+        int[] surfaceHeights
+    ) {
+        this.sectionKey = sectionKey;
+        this.version = version;
+        this.states = states;
+        this.neighbours = neighbours;
+        this.surfaceHeights = surfaceHeights;
+    }
+
+    /**
+     * Copies the section, its neighbours and the surface heights of its chunk. Must be called on the server thread.
+     * Neighbours outside the world height or in unloaded chunks are not copied.
+     */
+    @SuppressWarnings("unchecked")
+    public static SectionSnapshot capture(Batch batch, WorldChunk chunk, long sectionKey, long version) {
+        int sectionIndex = chunk.sectionCoordToIndex(ChunkSectionPos.unpackY(sectionKey));
+        ChunkSection section = chunk.getSection(sectionIndex);
+        if (section.isEmpty()) {
+            return new SectionSnapshot(sectionKey, version, null, null, null);
+        }
+
+        PalettedContainer<BlockState>[] neighbours = new PalettedContainer[DIRECTIONS.length];
+        for (Direction dir : DIRECTIONS) {
+            WorldChunk neighbourChunk = chunk;
+            int neighbourIndex = sectionIndex + dir.getOffsetY();
+            if (neighbourIndex < 0 || neighbourIndex >= chunk.getSectionArray().length) {
+                continue;
+            }
+            if (dir.getOffsetY() == 0) {
+                int neighbourX = chunk.getPos().x + dir.getOffsetX();
+                int neighbourZ = chunk.getPos().z + dir.getOffsetZ();
+                if (!batch.world.isChunkLoaded(neighbourX, neighbourZ)) {
+                    continue;
+                }
+                neighbourChunk = batch.world.getChunk(neighbourX, neighbourZ);
+            }
+            neighbours[dir.ordinal()] = batch.copy(neighbourChunk, neighbourIndex);
+        }
+        Heightmap heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        int[] surfaceHeights = new int[16 * 16];
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                surfaceHeights[(z << 4) | x] = heightmap.get(x, z);
+            }
+        }
+        return new SectionSnapshot(sectionKey, version, batch.copy(chunk, sectionIndex), neighbours, surfaceHeights);
+    }
+
+    public long getSectionKey() {
+        return sectionKey;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the section contained only air when it was captured
+     */
+    public boolean isEmpty() {
+        return states == null;
+    }
+
+    public PalettedContainer<BlockState> getStates() {
+        return states;
+    }
+
+    /**
+     * @return the lowest y of the column from which on all blocks are air
+     */
+    public int getSurfaceHeight(int localX, int localZ) {
+        return surfaceHeights[(localZ << 4) | localX];
+    }
+
+    /**
+     * @return the neighbouring section in the direction or null if it lies outside the world height
+     * or in an unloaded chunk
+     */
+    public PalettedContainer<BlockState> getNeighbour(Direction dir) {
+        return neighbours[dir.ordinal()];
+    }
+
+    /**
+     * Copies of the sections captured on the server thread in the same tick.
+     * The copies are never modified, so the snapshots sharing them can be scanned concurrently.
+     */
+    public static final class Batch {
+
+        private final ServerWorld world;
+        private final Long2ObjectOpenHashMap<PalettedContainer<BlockState>> copies = new Long2ObjectOpenHashMap<>();
+
+        public Batch(ServerWorld world) {
+            this.world = world;
+        }
+
+        private PalettedContainer<BlockState> copy(WorldChunk chunk, int sectionIndex) {
+            long sectionKey = ChunkSectionPos.asLong(chunk.getPos().x, chunk.sectionIndexToCoord(sectionIndex), chunk.getPos().z);
+            PalettedContainer<BlockState> copy = copies.get(sectionKey);
+            if (copy == null) {
+                copy = chunk.getSection(sectionIndex).getBlockStateContainer().copy();
+                copies.put(sectionKey, copy);
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package me.sailex.secondbrain.context;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Accessible blocks of a world, indexed by chunk section.
+ * Sections are reference-counted by the NPCs that need them, so every section is only scanned once
+ * no matter how many NPCs are standing near it.
+ * Dirty sections are copied on the server thread by {@link #captureSection(long)} and the copies are
+ * scanned off-thread by {@link #applyScan(SectionSnapshot)}.
+ */
+public class WorldBlockIndex {
+
+    private final ServerWorld world;
+    private final SectionScanner scanner;
+    private final Map<Long, IndexedSection> sections = new ConcurrentHashMap<>();
+    // versions of the snapshots are counted across all sections, so a section tracked again after its release
+    // can tell the scans of its earlier instance apart from its own
+    private final AtomicLong versions = new AtomicLong();
+
+    public WorldBlockIndex(ServerWorld world, BlockTypeTable blockTypes) {
+        this.world = world;
+        this.scanner = new SectionScanner(blockTypes);
+    }
+
+    /**
+     * Starts tracking a section for one more NPC. New sections are scanned on their first refresh.
+     */
+    public void retain(long sectionKey) {
+        sections.compute(sectionKey, (key, section) -> {
+            IndexedSection retained = section == null ? new IndexedSection(versions.get()) : section;
+            retained.refCount++;
+            return retained;
+        });
+    }
+
+    /**
+     * Stops tracking a section for one NPC. The section is dropped once no NPC needs it anymore.
+     */
+    public void release(long sectionKey) {
+        sections.computeIfPresent(sectionKey, (key, section) -> --section.refCount <= 0 ? null : section);
+    }
+
+    /**
+     * Copies the section if it is dirty and its chunk is loaded. Must be called on the server thread.
+     * Sections already copied in the batch are shared instead of copied again.
+     *
+     * @return the snapshot to scan or null if the section does not need to be scanned
+     */
+    public SectionSnapshot captureSection(long sectionKey, SectionSnapshot.Batch batch) {
+        IndexedSection section = sections.get(sectionKey);
+        int chunkX = ChunkSectionPos.unpackX(sectionKey);
+        int chunkZ = ChunkSectionPos.unpackZ(sectionKey);
+        if (section == null || !section.dirty || !world.isChunkLoaded(chunkX, chunkZ)) {
+            return null;
+        }
+        // clear the dirty flag on capture, so changes made while the snapshot is scanned are picked up next time
+        section.dirty = false;
+        return SectionSnapshot.capture(batch, world.getChunk(chunkX, chunkZ), sectionKey, versions.incrementAndGet());
+    }
+
+    /**
+     * Scans the snapshot and stores the result, unless the result of a newer snapshot of the section
+     * was stored already or the snapshot was taken before the section was last tracked again.
+     * Can be called on any thread, concurrently for any sections.
+     */
+    public void applyScan(SectionSnapshot snapshot) {
+        ScannedBlocks scanned = new ScannedBlocks(snapshot.getVersion(), scanner.scan(snapshot));
+        IndexedSection section = sections.get(snapshot.getSectionKey());
+        if (section != null && snapshot.getVersion() > section.trackedSinceVersion) {
+            section.scanned.accumulateAndGet(scanned,
+                    (current, update) -> update.version() > current.version() ? update : current);
+        }
+    }
+
+    /**
+     * Remembers the scan of the last captured snapshot of the section, so NPCs sharing the section can wait for it.
+     */
+    public void trackScan(long sectionKey, CompletableFuture<Void> scan) {
+        IndexedSection section = sections.get(sectionKey);
+        if (section != null) {
+            section.pendingScan = scan;
+        }
+    }
+
+    /**
+     * @return the scan of the last captured snapshot of the section, completed if there is none
+     */
+    public CompletableFuture<Void> getPendingScan(long sectionKey) {
+        IndexedSection section = sections.get(sectionKey);
+        return section == null ? CompletableFuture.completedFuture(null) : section.pendingScan;
+    }
+
+    /**
+     * @return true if any of the sections is tracked and was marked dirty since its last capture
+     */
+    public boolean hasDirtySection(long[] sectionKeys) {
+        for (long sectionKey : sectionKeys) {
+            IndexedSection section = sections.get(sectionKey);
+            if (section != null && section.dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ServerWorld getWorld() {
+        return world;
+    }
+
+    public SectionBlocks getBlocks(long sectionKey) {
+        IndexedSection section = sections.get(sectionKey);
+        return section == null ? SectionBlocks.EMPTY : section.scanned.get().blocks();
+    }
+
+    public int getIndexedSectionsCount() {
+        return sections.size();
+    }
+
+    /**
+     * Marks the section of the changed block as dirty.
+     * Neighbouring sections are marked as well if the block lies on a section border,
+     * because their accessibility checks may read the changed block.
+     */
+    public void onBlockChanged(BlockPos pos) {
+        int sectionX = ChunkSectionPos.getSectionCoord(pos.getX());
+        int sectionY = ChunkSectionPos.getSectionCoord(pos.getY());
+        int sectionZ = ChunkSectionPos.getSectionCoord(pos.getZ());
+        markDirty(ChunkSectionPos.asLong(sectionX, sectionY, sectionZ));
+
+        for (Direction dir : Direction.values()) {
+            BlockPos neighbour = pos.offset(dir);
+            int neighbourSectionX = ChunkSectionPos.getSectionCoord(neighbour.getX());
+            int neighbourSectionY = ChunkSectionPos.getSectionCoord(neighbour.getY());
+            int neighbourSectionZ = ChunkSectionPos.getSectionCoord(neighbour.getZ());
+            if (neighbourSectionX != sectionX || neighbourSectionY != sectionY || neighbourSectionZ != sectionZ) {
+                markDirty(ChunkSectionPos.asLong(neighbourSectionX, neighbourSectionY, neighbourSectionZ));
+            }
+        }
+    }
+
+    /**
+     * Marks all tracked sections of a chunk as dirty, e.g. if the chunk got loaded or unloaded.
+     * The sections of the horizontally adjacent chunks are marked as well,
+     * because the blocks on their borders are checked against this chunk.
+     */
+    public void onChunkChanged(ChunkPos chunkPos) {
+        markChunkDirty(chunkPos.x, chunkPos.z);
+        for (Direction dir : Direction.Type.HORIZONTAL) {
+            markChunkDirty(chunkPos.x + dir.getOffsetX(), chunkPos.z + dir.getOffsetZ());
+        }
+    }
+
+    private void markChunkDirty(int chunkX, int chunkZ) {
+        int minSectionY = ChunkSectionPos.getSectionCoord(world.getBottomY());
+        int maxSectionY = ChunkSectionPos.getSectionCoord(world.getBottomY() + world.getHeight() - 1);
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            markDirty(ChunkSectionPos.asLong(chunkX, sectionY, chunkZ));
+        }
+    }
+
+    private void markDirty(long sectionKey) {
+        IndexedSection section = sections.get(sectionKey);
+        if (section != null) {
+            section.dirty = true;
+        }
+    }
+
+    private static class IndexedSection {
+        private final long trackedSinceVersion;
+        private int refCount;
+        private volatile boolean dirty = true;
+        private volatile CompletableFuture<Void> pendingScan = CompletableFuture.completedFuture(null);
+        private final AtomicReference<ScannedBlocks> scanned = new AtomicReference<>(ScannedBlocks.NONE);
+
+        private IndexedSection(long trackedSinceVersion) {
+            this.trackedSinceVersion = trackedSinceVersion;
+        }
+    }
+
+    private record ScannedBlocks(long version, SectionBlocks blocks) {
+        private static final ScannedBlocks NONE = new ScannedBlocks(0, SectionBlocks.EMPTY);
+    }
+}
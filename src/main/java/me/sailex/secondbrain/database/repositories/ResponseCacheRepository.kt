@@ -0,0 +1,59 @@
+package me.sailex.secondbrain.database.repositories
+
+import me.sailex.secondbrain.database.SqliteClient
+import me.sailex.secondbrain.history.Message
+
+class ResponseCacheRepository(
+    val sqliteClient: SqliteClient,
+) {
+    fun init() {
+        createTable()
+    }
+
+    fun createTable() {
+        val sql = """
+            CREATE TABLE IF NOT EXISTS llm_response_cache (
+                cache_key CHARACTER(64) PRIMARY KEY,
+                role CHARACTER(9) NOT NULL,
+                message TEXT NOT NULL,
+                created_at INTEGER NOT NULL
+            );
+        """
+        sqliteClient.update(sql)
+    }
+
+    fun insert(key: String, response: Message, createdAt: Long) {
+        val statement =
+            sqliteClient.buildPreparedStatement(
+                "INSERT OR REPLACE INTO llm_response_cache (cache_key, role, message, created_at) VALUES (?, ?, ?, ?)",
+            )
+        statement.setString(1, key)
+        statement.setString(2, response.role)
+        statement.setString(3, response.message)
+        statement.setLong(4, createdAt)
+        sqliteClient.update(statement)
+    }
+
+    /**
+     * Selects the response cached under the key, if it was created after the given time
+     */
+    fun selectByKey(key: String, createdAfter: Long): Message? {
+        val sql = "SELECT role, message FROM llm_response_cache WHERE cache_key = '%s' AND created_at > %d"
+            .format(key, createdAfter)
+        val result = sqliteClient.query(sql) ?: return null
+        val response = if (result.next()) Message(result.getString("message"), result.getString("role")) else null
+        result.close()
+        return response
+    }
+
+    /**
+     * Deletes responses created before the given time and all but the newest entries.
+     */
+    fun deleteExpired(createdBefore: Long, maxEntries: Int) {
+        sqliteClient.update("DELETE FROM llm_response_cache WHERE created_at <= %d".format(createdBefore))
+        sqliteClient.update(
+            "DELETE FROM llm_response_cache WHERE cache_key NOT IN " +
+                "(SELECT cache_key FROM llm_response_cache ORDER BY created_at DESC LIMIT %d)".format(maxEntries)
+        )
+    }
+}
@@ -0,0 +1,238 @@
+package me.sailex.secondbrain.event
+
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParseException
+
+/**
+ * Parses the `{"command": ..., "message": ...}` response of the LLM while it is streamed.
+ * Text before the object like code fences or chatter is skipped, and only the string value that is
+ * currently read gets buffered. The command is passed to [onCommand] as soon as its value is complete,
+ * so it can be executed while the message is still generated.
+ * The message is passed to [onMessagePart] piece by piece while it is streamed
+ * and to [onMessage] once it is complete.
+ * If the stream did not contain a complete command and message, e.g. because of unquoted keys or values,
+ * the whole response is parsed with lenient Gson once it ended, as the response was parsed before it was streamed.
+ */
+class CommandMessageParser(
+    private val onCommand: (String) -> Unit,
+    private val onMessagePart: (String) -> Unit = {},
+    private val onMessage: (String) -> Unit = {}
+) {
+    private enum class State {
+        BEFORE_OBJECT,
+        BEFORE_KEY,
+        IN_KEY,
+        BEFORE_COLON,
+        BEFORE_VALUE,
+        IN_STRING_VALUE,
+        IN_OTHER_VALUE,
+        AFTER_VALUE,
+        DONE
+    }
+
+    companion object {
+        private val gson = GsonBuilder()
+            .setLenient()
+            .create()
+    }
+
+    private var state = State.BEFORE_OBJECT
+    private val response = StringBuilder()
+    private val token = StringBuilder()
+    private var quote = '"'
+    private var escaped = false
+    private var unicodeDigitsLeft = 0
+    private var unicodeValue = 0
+    private var otherValueDepth = 0
+    private var key = ""
+    private var emittedMessageLength = 0
+
+    var command: String? = null
+        private set
+    var message: String? = null
+        private set
+
+    /**
+     * Reads the next chunk of the response.
+     */
+    fun accept(chunk: String) {
+        response.append(chunk)
+        for (char in chunk) {
+            if (state == State.DONE) return
+            read(char)
+        }
+        if (isReadingMessage()) {
+            emitMessagePart()
+        }
+    }
+
+    /**
+     * Falls back to parsing the whole response leniently if the stream contained no complete command and message.
+     * Values found by the fallback are passed to [onCommand] and [onMessage] like streamed ones.
+     *
+     * @return the parsed message
+     * @throws CustomEventException if the response contained no complete command and message
+     */
+    fun result(): CommandMessage {
+        if (command == null || message == null) {
+            parseLeniently()
+        }
+        val parsedCommand = command
+        val parsedMessage = message
+        if (parsedCommand == null || parsedMessage == null) {
+            throw CustomEventException("The selected model may be too small to understand the context or to reliably produce valid JSON. " +
+                    "Please switch to a larger or more capable LLM model.", null)
+        }
+        return CommandMessage(parsedCommand, parsedMessage)
+    }
+
+    private fun parseLeniently() {
+        val content = response.toString()
+            .replace("```json", "")
+            .replace("```", "")
+        val start = content.indexOf('{')
+        val end = content.lastIndexOf('}')
+        if (start < 0 || end <= start) return
+        val json = try {
+            gson.fromJson(content.substring(start, end + 1), JsonObject::class.java) ?: return
+        } catch (_: JsonParseException) {
+            return
+        }
+        val parsedCommand = asString(json.get("command"))
+        if (command == null && parsedCommand != null) {
+            command = parsedCommand
+            onCommand(parsedCommand)
+        }
+        val parsedMessage = asString(json.get("message"))
+        if (message == null && parsedMessage != null) {
+            message = parsedMessage
+            onMessage(parsedMessage)
+        }
+    }
+
+    private fun asString(value: JsonElement?): String? {
+        return if (value != null && value.isJsonPrimitive) value.asString else null
+    }
+
+    private fun read(char: Char) {
+        when (state) {
+            State.BEFORE_OBJECT -> if (char == '{') state = State.BEFORE_KEY
+            State.BEFORE_KEY -> when {
+                char == '"' || char == '\'' -> startString(char, State.IN_KEY)
+                char == '}' -> state = State.DONE
+            }
+            State.BEFORE_COLON -> if (char == ':') state = State.BEFORE_VALUE
+            State.BEFORE_VALUE -> when {
+                char == '"' || char == '\'' -> startString(char, State.IN_STRING_VALUE)
+                !char.isWhitespace() -> {
+                    otherValueDepth = 0
+                    state = State.IN_OTHER_VALUE
+                    readOtherValue(char)
+                }
+            }
+            State.IN_KEY, State.IN_STRING_VALUE -> readString(char)
+            State.IN_OTHER_VALUE -> readOtherValue(char)
+            State.AFTER_VALUE -> when (char) {
+                ',' -> state = State.BEFORE_KEY
+                '}' -> state = State.DONE
+            }
+            State.DONE -> {}
+        }
+    }
+
+    private fun startString(quoteChar: Char, stringState: State) {
+        token.setLength(0)
+        quote = quoteChar
+        escaped = false
+        emittedMessageLength = 0
+        state = stringState
+    }
+
+    private fun isReadingMessage(): Boolean {
+        return state == State.IN_STRING_VALUE && key == "message" && message == null
+    }
+
+    private fun emitMessagePart() {
+        if (token.length > emittedMessageLength) {
+            onMessagePart(token.substring(emittedMessageLength))
+            emittedMessageLength = token.length
+        }
+    }
+
+    private fun readString(char: Char) {
+        when {
+            unicodeDigitsLeft > 0 -> {
+                unicodeValue = unicodeValue * 16 + Character.digit(char, 16).coerceAtLeast(0)
+                if (--unicodeDigitsLeft == 0) token.append(unicodeValue.toChar())
+            }
+            escaped -> {
+                escaped = false
+                when (char) {
+                    'n' -> token.append('\n')
+                    't' -> token.append('\t')
+                    'r' -> token.append('\r')
+                    'b' -> token.append('\b')
+                    'f' -> token.append('\u000C')
+                    'u' -> {
+                        unicodeDigitsLeft = 4
+                        unicodeValue = 0
+                    }
+                    else -> token.append(char)
+                }
+            }
+            char == '\\' -> escaped = true
+            char == quote -> completeString()
+            else -> token.append(char)
+        }
+    }
+
+    private fun completeString() {
+        if (isReadingMessage()) {
+            emitMessagePart()
+        }
+        val value = token.toString()
+        token.setLength(0)
+        if (state == State.IN_KEY) {
+            key = value
+            state = State.BEFORE_COLON
+            return
+        }
+        state = State.AFTER_VALUE
+        when (key) {
+            "command" -> if (command == null) {
+                command = value
+                onCommand(value)
+            }
+            "message" -> if (message == null) {
+                message = value
+                onMessage(value)
+            }
+        }
+    }
+
+    /**
+     * Skips values that are no strings, e.g. numbers, null or nested objects.
+     */
+    private fun readOtherValue(char: Char) {
+        when (char) {
+            '{', '[' -> otherValueDepth++
+            '}', ']' -> {
+                if (otherValueDepth == 0) {
+                    // closing bracket of the command object itself
+                    state = State.DONE
+                    return
+                }
+                otherValueDepth--
+                if (otherValueDepth == 0) state = State.AFTER_VALUE
+            }
+            ',' -> if (otherValueDepth == 0) state = State.BEFORE_KEY
+        }
+    }
+
+    data class CommandMessage(
+        val command: String,
+        val message: String
+    )
+}
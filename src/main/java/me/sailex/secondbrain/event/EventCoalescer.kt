@@ -0,0 +1,95 @@
+package me.sailex.secondbrain.event
+
+import me.sailex.secondbrain.constant.Instructions
+
+/**
+ * Collects the events of an NPC that arrive in a burst or while it is still busy with the previous event,
+ * so they are answered with one prompt instead of one LLM request per event.
+ * A single event arriving while the NPC is idle and no burst is going on is ready right away.
+ * Pending events superseded by a newer one are dropped, as are the oldest events if too many are pending.
+ */
+class EventCoalescer(
+    private val supersedes: (pending: String, newer: String) -> Boolean,
+    private val maxPendingEvents: Int = 10
+) {
+    private val pending = ArrayList<String>()
+    private var firstArrivalNs = 0L
+    private var lastArrivalNs = 0L
+    // time between the first pending event and the event before it, which may have been drained already
+    private var gapBeforeFirstNs = Long.MAX_VALUE
+    private var busyOnFirstArrival = false
+    private var anyArrival = false
+
+    /**
+     * Number of events dropped since the start, because they were superseded or too many were pending.
+     */
+    var droppedEvents = 0L
+        private set
+
+    /**
+     * Adds the event to the pending events.
+     *
+     * @param busy true if the NPC is still handling the previous event
+     * @return number of pending events dropped by it
+     */
+    @Synchronized
+    fun add(prompt: String, busy: Boolean): Int {
+        val now = System.nanoTime()
+        if (pending.isEmpty()) {
+            gapBeforeFirstNs = if (anyArrival) now - lastArrivalNs else Long.MAX_VALUE
+            busyOnFirstArrival = busy
+            firstArrivalNs = now
+        }
+        lastArrivalNs = now
+        anyArrival = true
+
+        val sizeBefore = pending.size
+        pending.removeIf { supersedes(it, prompt) }
+        pending.add(prompt)
+        while (pending.size > maxPendingEvents) {
+            pending.removeAt(0)
+        }
+        val dropped = sizeBefore + 1 - pending.size
+        droppedEvents += dropped
+        return dropped
+    }
+
+    @Synchronized
+    fun size(): Int {
+        return pending.size
+    }
+
+    /**
+     * @return 0 if a single event arrived while the NPC was idle and the window after the previous event
+     * had passed, otherwise nanoseconds until no event arrived for the window or the first pending event waited
+     * for the max delay
+     */
+    @Synchronized
+    fun nanosUntilReady(windowNs: Long, maxDelayNs: Long): Long {
+        if (pending.isEmpty()) return 0
+        if (lastArrivalNs == firstArrivalNs && !busyOnFirstArrival && gapBeforeFirstNs >= windowNs) return 0
+        val now = System.nanoTime()
+        return minOf(lastArrivalNs + windowNs, firstArrivalNs + maxDelayNs) - now
+    }
+
+    /**
+     * @return all pending events in order of arrival, the coalescer is empty afterwards
+     */
+    @Synchronized
+    fun drain(): List<String> {
+        val events = pending.toList()
+        pending.clear()
+        return events
+    }
+
+    companion object {
+        /**
+         * @return one prompt containing all events in order of arrival
+         */
+        fun merge(events: List<String>): String {
+            if (events.size == 1) return events[0]
+            val listedEvents = events.withIndex().joinToString("\n") { (index, event) -> "${index + 1}. $event" }
+            return Instructions.COALESCED_EVENTS_PROMPT.format(listedEvents)
+        }
+    }
+}
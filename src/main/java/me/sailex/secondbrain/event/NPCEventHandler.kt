@@ -1,7 +1,5 @@
 package me.sailex.secondbrain.event
 
-import com.google.gson.GsonBuilder
-import com.google.gson.JsonParseException
 import me.sailex.altoclef.AltoClefController
 import me.sailex.secondbrain.config.NPCConfig
 import me.sailex.secondbrain.constant.Instructions
@@ -9,136 +7,325 @@ import me.sailex.secondbrain.context.ContextProvider
 import me.sailex.secondbrain.history.ConversationHistory
 import me.sailex.secondbrain.history.Message
 import me.sailex.secondbrain.llm.LLMClient
+import me.sailex.secondbrain.llm.LLMRequestPriority
+import me.sailex.secondbrain.llm.LLMResponseCache
+import me.sailex.secondbrain.llm.LLMScheduler
 import me.sailex.secondbrain.llm.openai.OpenAiClient
 import me.sailex.secondbrain.llm.player2.Player2APIClient
 import me.sailex.secondbrain.llm.roles.Player2ChatRole
+import me.sailex.secondbrain.thread.NPCExecutors
 import me.sailex.secondbrain.util.LogUtil
-import me.sailex.secondbrain.util.PromptFormatter
 import net.minecraft.util.math.BlockPos
 import java.util.ArrayDeque
-import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CancellationException
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
 
 class NPCEventHandler(
     private val llmClient: LLMClient,
+    private val llmScheduler: LLMScheduler,
+    private val responseCache: LLMResponseCache,
     private val history: ConversationHistory,
     private val contextProvider: ContextProvider,
     private val controller: AltoClefController,
     private val config: NPCConfig,
 ): EventHandler {
-    companion object {
-        private val gson = GsonBuilder()
-            .setLenient()
-            .create()
-    }
-
-    private val executorService: ThreadPoolExecutor = ThreadPoolExecutor(
-        1, 1, 0L, TimeUnit.MILLISECONDS,
-        ArrayBlockingQueue(10),
-        ThreadPoolExecutor.DiscardPolicy()
-    )
+    // the coalescer bounds the pending events, so the event thread only ever has one drain queued
+    private val executorService: ExecutorService = NPCExecutors.newSerialExecutor("${config.npcName}-events")
+    // speech is synthesized apart from the event thread, so it overlaps the generation of the response.
+    // OpenAI speech is played on the audio executor of the client, Player2 speaks through its own app
+    private val speechSynthesisExecutor: ExecutorService = NPCExecutors.newSerialExecutor("${config.npcName}-tts")
+    private val player2SpeechExecutor: ExecutorService = NPCExecutors.newSerialExecutor("${config.npcName}-speech")
+    // pipelines that may still have sentences to play, they are cancelled when the service is stopped
+    private val speechPipelines: MutableSet<SpeechPipeline<*>> = ConcurrentHashMap.newKeySet()
     private val commandErrorPromptTimestamps = ArrayDeque<Long>()
+    // the system prompt is only rebuilt when the character changes, so every request starts with the same prefix
+    private var systemPromptCharacter: String? = null
+    private var systemPrompt = ""
+    // events arriving in a burst or while the previous event is handled are answered together
+    private val coalescer = EventCoalescer({ pending, newer ->
+        pending == newer || (isCommandErrorPrompt(pending) && isCommandErrorPrompt(newer))
+    })
+    private val drainScheduled = AtomicBoolean(false)
+    @Volatile
+    private var inFlight: InFlightEvent? = null
+    @Volatile
+    private var contextRefresh: CompletableFuture<Void> = CompletableFuture.completedFuture(null)
+    private val contextRefreshTimeoutMs = 500L
+    private val coalesceWindowNs = TimeUnit.MILLISECONDS.toNanos(250)
+    private val maxCoalesceDelayNs = TimeUnit.MILLISECONDS.toNanos(1000)
     private val diagRateLimitMs = 5000L
     private val commandLoopWindowMs = 10_000L
 
     /**
      * Processes an event asynchronously by allowing call actions from llm using the specified prompt.
+     * Events arriving within a short window or while the previous event is handled are merged into one prompt,
+     * an event arriving while the NPC is idle is handled right away.
      * Saves the prompt and responses in conversation history.
      *
      * @param prompt prompt of a user or system e.g. chatmessage of a player
      */
     override fun onEvent(prompt: String) {
-        val queueDepthBeforeEnqueue = executorService.queue.size
+        val queueDepthBeforeEnqueue = coalescer.size()
         logQueueDepthDiagnostic(queueDepthBeforeEnqueue)
         trackCommandErrorLoopPressure(prompt)
+        // scan the surroundings before other NPCs, so the context of this event is up to date
+        contextRefresh = contextProvider.chunkManager.requestRefresh()
+
+        // an event arriving while the NPC is idle is handled right away, otherwise it is coalesced
+        val busy = inFlight != null || queueDepthBeforeEnqueue > 0
+        supersedeInFlight(priorityOf(prompt))
+        val dropped = coalescer.add(prompt, busy)
+        if (dropped > 0) logDroppedEventsDiagnostic(dropped)
+        if (drainScheduled.compareAndSet(false, true)) {
+            executorService.execute { handlePendingEvents(queueDepthBeforeEnqueue) }
+        }
+    }
+
+    /**
+     * Waits for the burst of events to end, if there is one, and handles all pending events with one prompt.
+     */
+    private fun handlePendingEvents(queueDepthBeforeEnqueue: Int) {
+        try {
+            var waitNs = coalescer.nanosUntilReady(coalesceWindowNs, maxCoalesceDelayNs)
+            while (waitNs > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNs)
+                waitNs = coalescer.nanosUntilReady(coalesceWindowNs, maxCoalesceDelayNs)
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            return
+        } finally {
+            // events arriving from now on are handled by the next run
+            drainScheduled.set(false)
+        }
+        val events = coalescer.drain()
+        if (events.isEmpty()) return
+        val event = InFlightEvent(events, events.minOf { priorityOf(it) }, Thread.currentThread())
+        inFlight = event
+        try {
+            handleEvent(event, queueDepthBeforeEnqueue)
+        } finally {
+            inFlight = null
+        }
+    }
 
-        CompletableFuture.runAsync({
+    /**
+     * A player event supersedes the event in flight, unless the command of its response was already executed.
+     * The events of players are handled again together with the new event, other events are dropped.
+     */
+    private fun supersedeInFlight(priority: LLMRequestPriority) {
+        if (priority != LLMRequestPriority.INTERACTIVE) return
+        val event = inFlight ?: return
+        synchronized(event) {
+            if (event.commandDispatched || event.cancelled) return
+            event.cancelled = true
+        }
+        if (event.priority == LLMRequestPriority.INTERACTIVE) {
+            event.events.forEach { coalescer.add(it, true) }
+        }
+        LogUtil.info("Cancelled superseded event of ${config.npcName}")
+        cancelRequests(event)
+    }
+
+    /**
+     * Stops the request of the event waiting for or running on the backend.
+     * Other requests of the client, e.g. the summary of the history, keep running.
+     */
+    private fun cancelRequests(event: InFlightEvent) {
+        llmScheduler.cancelWaiting(config.npcName)
+        llmClient.cancelRequests(event.thread)
+    }
+
+    private fun handleEvent(event: InFlightEvent, queueDepthBeforeEnqueue: Int) {
+        val prompt = EventCoalescer.merge(event.events)
+        var userMessage: Message? = null
+        try {
             val eventStartNs = System.nanoTime()
             LogUtil.info("onEvent: $prompt")
 
+            awaitContextRefresh()
             val worldContext = contextProvider.buildContext()
             val zoneAwarePrompt = applyZoneSpecificBehaviour(prompt, worldContext.state().position())
-            val formattedPrompt: String = PromptFormatter.format(zoneAwarePrompt, worldContext)
+            userMessage = history.addPrompt(zoneAwarePrompt, worldContext, Player2ChatRole.USER.toString().lowercase())
+            val systemPrompt = getSystemPrompt()
+            val llmStartNs = System.nanoTime()
+            var firstChunkMs = -1L
+            var succeeded = false
+            var commandDispatchMs = 0L
+            val speech = createSpeechPipeline()
+            // a message streamed before the command is held back until the command was executed
+            var commandExecuted = false
+            val messageBeforeCommand = StringBuilder()
+            var completeMessageBeforeCommand: String? = null
+            // the command is executed as soon as it is streamed, while the message is still generated
+            // and spoken sentence by sentence
+            val parser = CommandMessageParser(
+                onCommand = { command ->
+                    synchronized(event) {
+                        if (event.cancelled) throw CancellationException("Event was superseded")
+                        event.commandDispatched = true
+                    }
+                    val commandDispatchStartNs = System.nanoTime()
+                    succeeded = execute(command)
+                    commandExecuted = true
+                    commandDispatchMs = millisSince(commandDispatchStartNs)
+                    logCommandDispatchLatencyDiagnostic(commandDispatchMs)
+                    if (succeeded) {
+                        if (messageBeforeCommand.isNotEmpty()) speech?.accept(messageBeforeCommand.toString())
+                        completeMessageBeforeCommand?.let { sendMessage(it, speech) }
+                    }
+                    messageBeforeCommand.setLength(0)
+                },
+                onMessagePart = { part ->
+                    when {
+                        !commandExecuted -> messageBeforeCommand.append(part)
+                        succeeded -> speech?.accept(part)
+                    }
+                },
+                onMessage = { message ->
+                    when {
+                        !commandExecuted -> completeMessageBeforeCommand = message
+                        succeeded -> sendMessage(message, speech)
+                    }
+                }
+            )
+            val messages = history.buildMessagesForApi(systemPrompt)
+            val response = requestResponse(messages, event) { chunk ->
+                if (firstChunkMs < 0) firstChunkMs = millisSince(llmStartNs)
+                parser.accept(chunk)
+            }
+            if (event.cancelled && !event.commandDispatched) throw CancellationException("Event was superseded")
+            val llmCallMs = millisSince(llmStartNs)
+            logLlmLatencyDiagnostic(llmCallMs, firstChunkMs)
+            history.add(response)
+            parser.result()
+            logEventTotalLatencyDiagnostic(millisSince(eventStartNs), queueDepthBeforeEnqueue, llmCallMs, commandDispatchMs)
+        } catch (e: Exception) {
+            if (event.cancelled) {
+                // the prompt is handled again with the superseding event or the NPC was removed
+                userMessage?.let { history.remove(it) }
+                LogUtil.info("Stopped handling cancelled event: $prompt")
+                return
+            }
+            LogUtil.debugInChat("Could not generate a response: " + buildErrorMessage(e))
+            LogUtil.error("Error occurred handling event: $prompt", e)
+        }
+    }
 
-            history.add(Message(formattedPrompt, Player2ChatRole.USER.toString().lowercase()))
-            val systemPrompt = Instructions.getLlmSystemPrompt(
+    /**
+     * Waits a bounded time for the block refresh requested by the events, so the prompt is built from fresh blocks.
+     * The last published blocks are used if the refresh takes longer.
+     */
+    private fun awaitContextRefresh() {
+        val waitStartNs = System.nanoTime()
+        try {
+            contextRefresh.get(contextRefreshTimeoutMs, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            logContextRefreshTimeoutDiagnostic(millisSince(waitStartNs))
+        }
+    }
+
+    private fun getSystemPrompt(): String {
+        val character = config.getEffectiveLlmCharacter()
+        if (character != systemPromptCharacter) {
+            systemPrompt = Instructions.getLlmSystemPrompt(
                 config.npcName,
-                config.getEffectiveLlmCharacter(),
+                character,
                 controller.commandExecutor.allCommands(),
                 config.llmType
             )
-            val llmStartNs = System.nanoTime()
-            val response = llmClient.chat(history.buildMessagesForApi(systemPrompt))
-            val llmCallMs = millisSince(llmStartNs)
-            logLlmLatencyDiagnostic(llmCallMs)
-            history.add(response)
+            systemPromptCharacter = character
+        }
+        return systemPrompt
+    }
 
-            val parsedMessage = parse(response.message)
-            val commandDispatchStartNs = System.nanoTime()
-            val succeeded = execute(parsedMessage.command)
-            val commandDispatchMs = millisSince(commandDispatchStartNs)
-            logCommandDispatchLatencyDiagnostic(commandDispatchMs)
-            if (!succeeded) {
-                logEventTotalLatencyDiagnostic(millisSince(eventStartNs), queueDepthBeforeEnqueue, llmCallMs, commandDispatchMs)
-                return@runAsync
+    /**
+     * Streams the response through the scheduler. Responses to the initial prompt may be taken from the cache,
+     * they are passed to the handler at once then.
+     */
+    private fun requestResponse(messages: List<Message>, event: InFlightEvent, chunkHandler: (String) -> Unit): Message {
+        val request = {
+            llmScheduler.execute(llmClient, config.npcName, event.priority) {
+                // the event may have been superseded while waiting for a slot
+                if (event.cancelled) throw CancellationException("Event was superseded")
+                llmClient.chatStreaming(messages) { chunkHandler(it) }
             }
+        }
+        if (event.priority != LLMRequestPriority.BACKGROUND) return request()
 
-            //prevent printing multiple times the same when llm is running in command syntax errors
-            if (parsedMessage.message != history.getLastMessage()) {
-                // Always send text chat; TTS is additional output when enabled.
-                controller.controllerExtras.chat(parsedMessage.message)
-                if (!config.isTTS) return@runAsync
-
-                when (llmClient) {
-                    is Player2APIClient -> llmClient.startTextToSpeech(parsedMessage.message)
-                    is OpenAiClient -> {
-                        try {
-                            llmClient.startTextToSpeech(parsedMessage.message)
-                        } catch (e: Exception) {
-                            LogUtil.error("OpenAI TTS failed", e)
-                        }
-                    }
-                    else -> {}
-                }
-            }
-            logEventTotalLatencyDiagnostic(millisSince(eventStartNs), queueDepthBeforeEnqueue, llmCallMs, commandDispatchMs)
-        }, executorService)
-            .exceptionally {
-                LogUtil.debugInChat("Could not generate a response: " + buildErrorMessage(it))
-                LogUtil.error("Error occurred handling event: $prompt", it)
-                null
-            }
+        var streamed = false
+        val response = responseCache.getOrRequest(llmClient, messages) {
+            streamed = true
+            request()
+        }
+        if (!streamed) chunkHandler(response.message)
+        return response
     }
 
     override fun stopService() {
+        inFlight?.let {
+            synchronized(it) { it.cancelled = true }
+            cancelRequests(it)
+        }
         executorService.shutdownNow()
+        speechPipelines.forEach { it.cancel() }
+        speechPipelines.clear()
+        speechSynthesisExecutor.shutdownNow()
+        player2SpeechExecutor.shutdownNow()
     }
 
-    override fun queueIsEmpty(): Boolean {
-        return executorService.queue.isEmpty()
-    }
+    /**
+     * Sends the complete message to chat and finishes speaking it.
+     */
+    private fun sendMessage(message: String, speech: SpeechPipeline<*>?) {
+        //prevent printing multiple times the same when llm is running in command syntax errors
+        if (message == history.getLastMessage()) return
+
+        // Always send text chat; TTS is additional output when enabled.
+        controller.controllerExtras.chat(message)
+        if (!config.isTTS) return
 
-    //TODO: refactor this into own class
-    private fun parse(content: String): CommandMessage {
-        return try {
-            parseContent(content)
-        } catch (_: JsonParseException) {
-            val cleanedContent = content
-                .replace("```json", "")
-                .replace("```", "")
-            try {
-                parseContent(cleanedContent)
-            } catch (e: JsonParseException) {
-                throw CustomEventException("The selected model may be too small to understand the context or to reliably produce valid JSON. " +
-                        "Please switch to a larger or more capable LLM model.", e)
+        when {
+            speech != null -> {
+                // the message may have been streamed before the command was executed
+                if (!speech.started) speech.accept(message)
+                speech.finish()
+            }
+            llmClient is Player2APIClient -> player2SpeechExecutor.execute {
+                try {
+                    llmClient.startTextToSpeech(message)
+                } catch (e: Exception) {
+                    LogUtil.error("Player2 TTS failed", e)
+                }
             }
         }
     }
 
-    private fun parseContent(content: String): CommandMessage {
-        return gson.fromJson(content, CommandMessage::class.java)
+    /**
+     * @return a pipeline speaking the streamed message sentence by sentence
+     * or null if the client can't synthesize speech per sentence
+     */
+    private fun createSpeechPipeline(): SpeechPipeline<*>? {
+        if (!config.isTTS || llmClient !is OpenAiClient) return null
+        speechPipelines.removeIf { it.isDone }
+        val pipeline = SpeechPipeline(
+            llmClient::synthesizeSpeech,
+            llmClient::playSpeech,
+            llmClient::discardSpeech,
+            speechSynthesisExecutor,
+            llmClient.audioExecutor
+        )
+        speechPipelines.add(pipeline)
+        return pipeline
+    }
+
+    override fun queueIsEmpty(): Boolean {
+        return coalescer.size() == 0 && !drainScheduled.get()
     }
 
     fun execute(command: String): Boolean {
@@ -164,11 +351,6 @@ class NPCEventHandler(
         return successful
     }
 
-    data class CommandMessage(
-        val command: String,
-        val message: String
-    )
-
     private fun buildErrorMessage(exception: Throwable): String {
         val chain = generateSequence(exception) { it.cause }.toList()
         val custom = chain.filterIsInstance<CustomEventException>().firstOrNull()
@@ -192,10 +374,25 @@ class NPCEventHandler(
         """.trimIndent()
     }
 
+    /**
+     * Players waiting for an answer go before command retries, which go before the initial prompt.
+     */
+    private fun priorityOf(prompt: String): LLMRequestPriority {
+        return when {
+            prompt == Instructions.INITIAL_PROMPT -> LLMRequestPriority.BACKGROUND
+            isCommandErrorPrompt(prompt) -> LLMRequestPriority.COMMAND_RETRY
+            else -> LLMRequestPriority.INTERACTIVE
+        }
+    }
+
+    private fun isCommandErrorPrompt(prompt: String): Boolean {
+        val trimmedPrompt = prompt.trimStart()
+        return trimmedPrompt.startsWith("Command ") && trimmedPrompt.contains(" failed. Error content:")
+    }
+
     private fun trackCommandErrorLoopPressure(prompt: String) {
         if (!LogUtil.isVerboseEnabled()) return
-        val trimmedPrompt = prompt.trimStart()
-        if (!trimmedPrompt.startsWith("Command ") || !trimmedPrompt.contains(" failed. Error content:")) return
+        if (!isCommandErrorPrompt(prompt)) return
 
         val now = System.currentTimeMillis()
         val failuresInWindow: Int
@@ -230,11 +427,30 @@ class NPCEventHandler(
         )
     }
 
-    private fun logLlmLatencyDiagnostic(llmCallMs: Long) {
+    private fun logContextRefreshTimeoutDiagnostic(waitMs: Long) {
+        if (!LogUtil.isVerboseEnabled()) return
+        LogUtil.warnRateLimited(
+            "event.context_refresh_timeout.${config.npcName}",
+            "[SB-DIAG] area=event npc=${config.npcName} thread=${Thread.currentThread().name} metric=context_refresh_wait_ms value=$waitMs timeout=true",
+            diagRateLimitMs
+        )
+    }
+
+    private fun logDroppedEventsDiagnostic(dropped: Int) {
+        LogUtil.info("Dropped $dropped superseded or overflowing events of ${config.npcName}, ${coalescer.droppedEvents} in total")
+        if (!LogUtil.isVerboseEnabled()) return
+        LogUtil.warnRateLimited(
+            "event.dropped.${config.npcName}",
+            "[SB-DIAG] area=event npc=${config.npcName} thread=${Thread.currentThread().name} metric=dropped_events value=$dropped total=${coalescer.droppedEvents}",
+            diagRateLimitMs
+        )
+    }
+
+    private fun logLlmLatencyDiagnostic(llmCallMs: Long, firstChunkMs: Long) {
         if (!LogUtil.isVerboseEnabled() || llmCallMs <= 1200) return
         LogUtil.warnRateLimited(
             "event.llm_latency.${config.npcName}",
-            "[SB-DIAG] area=event npc=${config.npcName} thread=${Thread.currentThread().name} metric=llm_ms value=$llmCallMs",
+            "[SB-DIAG] area=event npc=${config.npcName} thread=${Thread.currentThread().name} metric=llm_ms value=$llmCallMs first_chunk_ms=$firstChunkMs",
             diagRateLimitMs
         )
     }
@@ -261,4 +477,18 @@ class NPCEventHandler(
         return (System.nanoTime() - startNs) / 1_000_000L
     }
 
+    /**
+     * Events handled with one prompt. It is cancelled if a newer event supersedes it or the NPC is removed.
+     */
+    private class InFlightEvent(
+        val events: List<String>,
+        val priority: LLMRequestPriority,
+        // the event thread, which runs the LLM request of the event
+        val thread: Thread
+    ) {
+        @Volatile
+        var cancelled = false
+        @Volatile
+        var commandDispatched = false
+    }
 }
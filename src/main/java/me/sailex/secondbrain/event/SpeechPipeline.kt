@@ -0,0 +1,119 @@
+package me.sailex.secondbrain.event
+
+import me.sailex.secondbrain.util.LogUtil
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Speaks a streamed message sentence by sentence.
+ * Every completed sentence is synthesized right away, while the next sentence of the message is still generated
+ * and the previous one is still playing. Sentences are always played in order.
+ * Synthesized audio that is not played, because the pipeline was cancelled or playback was rejected,
+ * is released by [discard].
+ */
+class SpeechPipeline<T>(
+    private val synthesize: (String) -> T,
+    private val play: (T) -> Unit,
+    private val discard: (T) -> Unit,
+    private val synthesisExecutor: ExecutorService,
+    private val playbackExecutor: ExecutorService
+) {
+    companion object {
+        private const val MIN_SENTENCE_LENGTH = 12
+    }
+
+    private val pending = StringBuilder()
+    private val unplayed: MutableSet<CompletableFuture<T>> = ConcurrentHashMap.newKeySet()
+    @Volatile
+    private var cancelled = false
+    var started = false
+        private set
+
+    /**
+     * @return true if all synthesized sentences were played or discarded
+     */
+    val isDone: Boolean
+        get() = unplayed.isEmpty()
+
+    /**
+     * Adds the next part of the message and speaks the sentences completed by it.
+     */
+    fun accept(part: String) {
+        started = true
+        pending.append(part)
+        var sentenceEnd = findSentenceEnd()
+        while (sentenceEnd > 0) {
+            speak(pending.substring(0, sentenceEnd))
+            pending.delete(0, sentenceEnd)
+            sentenceEnd = findSentenceEnd()
+        }
+    }
+
+    /**
+     * Speaks the rest of the message.
+     */
+    fun finish() {
+        speak(pending.toString())
+        pending.setLength(0)
+    }
+
+    /**
+     * @return the index after the first sentence end followed by whitespace, or -1 if there is none.
+     * Very short sentences are joined with the following one to avoid a request per word.
+     */
+    private fun findSentenceEnd(): Int {
+        for (i in MIN_SENTENCE_LENGTH until pending.length - 1) {
+            val char = pending[i]
+            if ((char == '.' || char == '!' || char == '?' || char == '\n') && pending[i + 1].isWhitespace()) {
+                return i + 1
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Stops speaking, the sentences not played yet are discarded once they are synthesized.
+     */
+    fun cancel() {
+        cancelled = true
+        unplayed.toList().forEach(::discardWhenSynthesized)
+    }
+
+    private fun speak(sentence: String) {
+        if (sentence.isBlank() || cancelled) return
+        val audio = try {
+            CompletableFuture.supplyAsync({ synthesize(sentence.trim()) }, synthesisExecutor)
+        } catch (e: RejectedExecutionException) {
+            return
+        }
+        unplayed.add(audio)
+        try {
+            playbackExecutor.execute {
+                // the sentence may have been discarded by a cancel in the meantime
+                if (!unplayed.remove(audio)) return@execute
+                try {
+                    val synthesized = audio.join()
+                    if (cancelled) discard(synthesized) else play(synthesized)
+                } catch (e: Exception) {
+                    LogUtil.error("TTS failed", e)
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            discardWhenSynthesized(audio)
+        }
+        if (cancelled) discardWhenSynthesized(audio)
+    }
+
+    private fun discardWhenSynthesized(audio: CompletableFuture<T>) {
+        if (!unplayed.remove(audio)) return
+        audio.thenAccept { synthesized ->
+            try {
+                discard(synthesized)
+            } catch (e: Exception) {
+                LogUtil.error("Failed to discard TTS audio", e)
+            }
+        }
+    }
+}
@@ -3,16 +3,45 @@ package me.sailex.secondbrain.history
 import com.fasterxml.jackson.databind.ObjectMapper
 import me.sailex.secondbrain.constant.Instructions
 import me.sailex.secondbrain.llm.LLMClient
+import me.sailex.secondbrain.llm.LLMRequestPriority
+import me.sailex.secondbrain.llm.LLMResponseCache
+import me.sailex.secondbrain.llm.LLMScheduler
+import me.sailex.secondbrain.model.context.WorldContext
+import me.sailex.secondbrain.thread.NPCExecutors
+import me.sailex.secondbrain.util.LogUtil
+import me.sailex.secondbrain.util.PromptFormatter
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
 
 class ConversationHistory(
     private val llmClient: LLMClient,
-    val latestConversations: MutableList<Message>
+    private val llmScheduler: LLMScheduler,
+    private val responseCache: LLMResponseCache,
+    private val npcName: String,
+    val latestConversations: MutableList<Message>,
+    private val tokenBudget: Int = 0,
+    private val deltaContext: Boolean = false,
+    private val tokenEstimator: TokenEstimator = TokenEstimator.HEURISTIC
 ) {
     companion object {
         private const val MAX_HISTORY_LENGTH = 30
+        // compaction starts ahead of the limit, so the summary is usually swapped in before the limit is reached
+        private const val COMPACTION_THRESHOLD = MAX_HISTORY_LENGTH * 7 / 10
         private val objectMapper = ObjectMapper()
+        private const val TRIM_TARGET_PERCENT = 75
     }
 
+    // summaries are generated apart from the event thread, adding and reading the history never waits for them
+    private val compactionExecutor: ExecutorService = NPCExecutors.newSerialExecutor("$npcName-summary")
+    private var compacting = false
+    // number of the oldest turns left out of requests in token budget mode, only grows until the next summary
+    private var trimmedTurns = 0
+    // environment the LLM was given last in delta context mode, with the turn of the last full environment
+    // and the turn of the environment itself, which the changes of the next prompt depend on
+    private var contextBaseline: WorldContext? = null
+    private var contextSnapshotTurn: Message? = null
+    private var contextBaselineTurn: Message? = null
+
     @Synchronized
     fun add(message: Message) {
         if (message.role.equals("system", ignoreCase = true)) {
@@ -20,32 +49,142 @@ class ConversationHistory(
         }
         latestConversations.add(message)
 
-        if (latestConversations.size >= MAX_HISTORY_LENGTH) {
-            updateConversations()
+        if (latestConversations.size >= COMPACTION_THRESHOLD && !compacting && !compactionExecutor.isShutdown) {
+            startCompaction()
+        }
+        if (latestConversations.size >= MAX_HISTORY_LENGTH * 2) {
+            // summaries keep failing, drop the oldest turns instead of growing without limit
+            latestConversations.subList(0, latestConversations.size - MAX_HISTORY_LENGTH).clear()
+            trimmedTurns = 0
         }
     }
 
+    /**
+     * Adds the prompt of a user or event together with the environment of the NPC.
+     * In delta context mode only the changes since the environment of the previous prompt are added,
+     * as long as the turns these changes depend on are still in the history. Otherwise, e.g. after a summary
+     * or a cancelled event, the full environment is added again. In token budget mode the environment of older turns
+     * is left out of the requests, so the full environment is always added.
+     */
+    @Synchronized
+    fun addPrompt(prompt: String, worldContext: WorldContext, role: String): Message {
+        val baseline = contextBaseline
+        val isDelta = deltaContext && tokenBudget <= 0 && baseline != null
+                && contains(contextSnapshotTurn) && contains(contextBaselineTurn)
+        val formattedPrompt = if (isDelta) {
+            PromptFormatter.formatDelta(prompt, baseline!!, worldContext)
+        } else {
+            PromptFormatter.format(prompt, worldContext)
+        }
+        val message = Message(formattedPrompt, role)
+        add(message)
+        if (!isDelta) contextSnapshotTurn = message
+        contextBaselineTurn = message
+        contextBaseline = worldContext
+        return message
+    }
+
+    private fun contains(turn: Message?): Boolean {
+        return turn != null && latestConversations.any { it === turn }
+    }
+
+    /**
+     * Removes the latest occurrence of the message, e.g. the prompt of a cancelled event.
+     */
+    @Synchronized
+    fun remove(message: Message) {
+        val index = latestConversations.lastIndexOf(message)
+        if (index >= 0) {
+            latestConversations.removeAt(index)
+        }
+    }
+
+    fun stopService() {
+        compactionExecutor.shutdownNow()
+    }
+
+    /**
+     * Builds the messages of the next request. If a token budget is set, the environment of all but the latest
+     * user turn is left out and the oldest turns are trimmed until the request fits into the budget.
+     */
     @Synchronized
     fun buildMessagesForApi(systemMessage: String): List<Message> {
-        return listOf(Message(systemMessage, "system")) +
-            latestConversations.filterNot { it.role.equals("system", ignoreCase = true) }
+        val system = Message(systemMessage, "system")
+        val turns = latestConversations.filterNot { it.role.equals("system", ignoreCase = true) }
+        if (tokenBudget <= 0) {
+            return listOf(system) + turns
+        }
+        return listOf(system) + fitToBudget(system, turns)
+    }
+
+    private fun fitToBudget(system: Message, turns: List<Message>): List<Message> {
+        val latestUserTurn = turns.indexOfLast { it.role.equals("user", ignoreCase = true) }
+        val compacted = turns.mapIndexed { index, turn ->
+            if (index != latestUserTurn && turn.role.equals("user", ignoreCase = true)) {
+                turn.copy(message = PromptFormatter.stripEnvironment(turn.message))
+            } else {
+                turn
+            }
+        }
+        val tokens = compacted.map(tokenEstimator::estimate)
+        val available = tokenBudget - tokenEstimator.estimate(system)
+
+        trimmedTurns = trimmedTurns.coerceAtMost((compacted.size - 1).coerceAtLeast(0))
+        var total = tokens.drop(trimmedTurns).sum()
+        if (total > available) {
+            // trim below the budget, so the front of the following requests stays the same for a while
+            val target = available * TRIM_TARGET_PERCENT / 100
+            while (total > target && trimmedTurns < compacted.size - 1) {
+                total -= tokens[trimmedTurns]
+                trimmedTurns++
+            }
+        }
+        return compacted.drop(trimmedTurns)
     }
 
-    private fun updateConversations() {
-        val removeCount = MAX_HISTORY_LENGTH / 3
-        val toSummarize = latestConversations.subList(0, removeCount).toList()
-        val message = summarize(toSummarize)
-        latestConversations.removeAll(toSummarize)
-        latestConversations.add(0, message)
+    /**
+     * Summarizes the oldest turns in the background and swaps the summary in for them once it is generated.
+     */
+    private fun startCompaction() {
+        compacting = true
+        val toSummarize = latestConversations.subList(0, MAX_HISTORY_LENGTH / 3).toList()
+        CompletableFuture.supplyAsync({ summarize(toSummarize) }, compactionExecutor)
+            .whenComplete { summary, error ->
+                synchronized(this) {
+                    compacting = false
+                    if (error != null) {
+                        LogUtil.error("Could not summarize conversation of $npcName", error)
+                    } else {
+                        swapInSummary(toSummarize, summary)
+                    }
+                }
+            }
+    }
+
+    private fun swapInSummary(summarized: List<Message>, summary: Message) {
+        // the turns may have been dropped in the meantime
+        if (latestConversations.size < summarized.size
+            || latestConversations.subList(0, summarized.size) != summarized) {
+            return
+        }
+        latestConversations.subList(0, summarized.size).clear()
+        latestConversations.add(0, summary)
+        trimmedTurns = 0
     }
 
     private fun summarize(conversations: List<Message>): Message {
         val summarizeMessage = Message(
             Instructions.SUMMARY_PROMPT.format( objectMapper.writeValueAsString(conversations)),
             "user")
-        return llmClient.chat(listOf(summarizeMessage))
+        val messages = listOf(summarizeMessage)
+        return responseCache.getOrRequest(llmClient, messages) {
+            llmScheduler.execute(llmClient, "$npcName-summary", LLMRequestPriority.BACKGROUND) {
+                llmClient.chat(messages)
+            }
+        }
     }
 
+    @Synchronized
     fun getLastMessage(): String {
         return latestConversations.last().message
     }
@@ -0,0 +1,17 @@
+package me.sailex.secondbrain.history
+
+/**
+ * Estimates how many tokens a message takes up in a request.
+ */
+fun interface TokenEstimator {
+
+    fun estimate(message: Message): Int
+
+    companion object {
+        /**
+         * About four characters per token for english text, plus the tokens wrapping the role of the message.
+         */
+        @JvmField
+        val HEURISTIC = TokenEstimator { (it.message.length + 3) / 4 + 4 }
+    }
+}
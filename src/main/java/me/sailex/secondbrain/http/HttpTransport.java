@@ -0,0 +1,148 @@
+package me.sailex.secondbrain.http;
+
+import com.openai.client.OpenAIClient;
+import com.openai.client.okhttp.OpenAIOkHttpClient;
+import com.openai.core.Timeout;
+import io.github.ollama4j.OllamaAPI;
+import me.sailex.secondbrain.config.BaseConfig;
+import me.sailex.secondbrain.thread.NPCExecutors;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shared HTTP transport of the Player2, OpenAI, TTS and skin clients.
+ * Requests sent by {@link #send} go through one keep-alive connection pool,
+ * which negotiates HTTP/2 where the endpoint supports it.
+ * The OpenAI clients are shared between all NPCs using the same endpoint, so they share the OkHttp connection pool
+ * and many NPCs against one host don't do a TLS handshake each.
+ * The Ollama API instances are shared as well, but ollama4j opens a new {@link HttpClient} for every request,
+ * so Ollama requests don't reuse connections of this transport.
+ * <p>
+ * The number of concurrent requests per host and the connect timeout are taken from the {@link BaseConfig}.
+ * LLM chat requests are already limited by the {@link me.sailex.secondbrain.llm.LLMScheduler},
+ * so they are sent without a host permit.
+ */
+public final class HttpTransport {
+
+    private static volatile HttpTransport shared = new HttpTransport(new BaseConfig());
+
+    private final int maxRequestsPerHost;
+    private final int connectTimeoutSeconds;
+    private final HttpClient httpClient;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final Map<OpenAiEndpoint, OpenAIClient> openAiClients = new ConcurrentHashMap<>();
+    private final Map<OllamaEndpoint, OllamaAPI> ollamaClients = new ConcurrentHashMap<>();
+
+    public HttpTransport(BaseConfig config) {
+        this.maxRequestsPerHost = Math.max(1, config.getMaxRequestsPerHost());
+        this.connectTimeoutSeconds = Math.max(1, config.getHttpConnectTimeout());
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .executor(NPCExecutors.newTaskExecutor("http"))
+                .build();
+    }
+
+    public static HttpTransport shared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared transport if the HTTP settings of the config changed.
+     * Clients created before keep using the previous transport until they are recreated.
+     */
+    public static synchronized void configure(BaseConfig config) {
+        HttpTransport current = shared;
+        if (current.maxRequestsPerHost != Math.max(1, config.getMaxRequestsPerHost())
+                || current.connectTimeoutSeconds != Math.max(1, config.getHttpConnectTimeout())) {
+            shared = new HttpTransport(config);
+        }
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Sends the request over the shared connection pool, waiting for a free request slot of its host.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        Semaphore permits = getHostPermits(request.uri());
+        permits.acquire();
+        try {
+            return sendWithoutPermit(request, bodyHandler);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends the request over the shared connection pool without a request slot of its host,
+     * for LLM requests which are limited by the scheduler already.
+     */
+    public <T> HttpResponse<T> sendWithoutPermit(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        return httpClient.send(request, bodyHandler);
+    }
+
+    /**
+     * Runs a request of an SDK client, waiting for a free request slot of the host.
+     */
+    public <T> T withHostPermit(String url, Callable<T> request) throws Exception {
+        Semaphore permits = getHostPermits(URI.create(url));
+        permits.acquire();
+        try {
+            return request.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the OpenAI client of the endpoint, shared by all NPCs using the same endpoint and key
+     */
+    public OpenAIClient getOpenAiClient(String baseUrl, String apiKey, int timeoutSeconds) {
+        return openAiClients.computeIfAbsent(new OpenAiEndpoint(baseUrl, apiKey, timeoutSeconds), endpoint ->
+                OpenAIOkHttpClient.builder()
+                        .apiKey(endpoint.apiKey())
+                        .baseUrl(endpoint.baseUrl())
+                        .timeout(Timeout.builder()
+                                .connect(Duration.ofSeconds(connectTimeoutSeconds))
+                                .request(Duration.ofSeconds(endpoint.timeoutSeconds()))
+                                .build())
+                        .build());
+    }
+
+    /**
+     * @return the Ollama API of the host, shared by all NPCs using the same host
+     */
+    public OllamaAPI getOllamaApi(String url, int timeoutSeconds, boolean verbose) {
+        return ollamaClients.computeIfAbsent(new OllamaEndpoint(url, timeoutSeconds, verbose), endpoint -> {
+            OllamaAPI ollamaAPI = new OllamaAPI(endpoint.url());
+            ollamaAPI.setVerbose(endpoint.verbose());
+            ollamaAPI.setMaxChatToolCallRetries(1);
+            ollamaAPI.setRequestTimeoutSeconds(endpoint.timeoutSeconds());
+            return ollamaAPI;
+        });
+    }
+
+    private Semaphore getHostPermits(URI uri) {
+        String host = uri.getHost() + ":" + uri.getPort();
+        return hostPermits.computeIfAbsent(host, key -> new Semaphore(maxRequestsPerHost, true));
+    }
+
+    private record OpenAiEndpoint(String baseUrl, String apiKey, int timeoutSeconds) {}
+
+    private record OllamaEndpoint(String url, int timeoutSeconds, boolean verbose) {}
+}
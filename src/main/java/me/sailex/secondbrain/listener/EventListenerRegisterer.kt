@@ -1,5 +1,6 @@
 package me.sailex.secondbrain.listener
 
+import me.sailex.secondbrain.context.BlockIndexService
 import me.sailex.secondbrain.model.NPC
 import java.util.UUID
 
@@ -7,7 +8,8 @@ import java.util.UUID
  * Registers listeners for block interactions, chat messages and so on.
  */
 class EventListenerRegisterer(
-    private val npcs: Map<UUID, NPC>
+    private val npcs: Map<UUID, NPC>,
+    private val blockIndexService: BlockIndexService
 ) {
     /**
      * Register the event listeners.
@@ -15,7 +17,8 @@ class EventListenerRegisterer(
     fun register() {
         listOf<IEventListener>(
             ChatMessageListener(npcs),
-            STTListener(npcs)
+            STTListener(npcs),
+            WorldChangeListener(blockIndexService)
         ).forEach { listener -> listener.register() }
     }
 }
@@ -0,0 +1,25 @@
+package me.sailex.secondbrain.listener
+
+import me.sailex.secondbrain.callback.BlockEvents
+import me.sailex.secondbrain.context.BlockIndexService
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents
+
+/**
+ * Forwards block updates and chunk load/unload events to the shared block index,
+ * so only the chunk sections that actually changed get re-scanned.
+ */
+class WorldChangeListener(
+    private val blockIndexService: BlockIndexService
+) : IEventListener {
+    override fun register() {
+        BlockEvents.ON_BLOCK_CHANGED.register { world, pos ->
+            blockIndexService.onBlockChanged(world, pos)
+        }
+        ServerChunkEvents.CHUNK_LOAD.register { world, chunk ->
+            blockIndexService.onChunkChanged(world, chunk.pos)
+        }
+        ServerChunkEvents.CHUNK_UNLOAD.register { world, chunk ->
+            blockIndexService.onChunkChanged(world, chunk.pos)
+        }
+    }
+}
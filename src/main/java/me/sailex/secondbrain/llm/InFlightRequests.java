@@ -0,0 +1,120 @@
+package me.sailex.secondbrain.llm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the requests a client is running, so they can be aborted from another thread.
+ * A cancelled request runs the abort actions registered by the client, e.g. closing the response stream,
+ * and interrupts the thread waiting for it. It then throws a {@link CancellationException}.
+ */
+public class InFlightRequests {
+
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runs the request on the calling thread.
+     *
+     * @throws CancellationException if the request was cancelled while it ran
+     */
+    public <T> T run(Request<T> request) throws Exception {
+        Call call = new Call(Thread.currentThread());
+        calls.add(call);
+        try {
+            return request.run(call);
+        } catch (Exception e) {
+            if (call.isCancelled()) {
+                CancellationException cancellation = new CancellationException("LLM request was cancelled");
+                cancellation.initCause(e);
+                throw cancellation;
+            }
+            throw e;
+        } finally {
+            calls.remove(call);
+            call.finish();
+        }
+    }
+
+    /**
+     * Aborts all running requests.
+     */
+    public void cancelAll() {
+        calls.forEach(Call::cancel);
+    }
+
+    /**
+     * Aborts the running requests of the thread, requests of other threads keep running.
+     */
+    public void cancel(Thread thread) {
+        calls.stream()
+                .filter(call -> call.thread == thread)
+                .forEach(Call::cancel);
+    }
+
+    @FunctionalInterface
+    public interface Request<T> {
+        T run(Call call) throws Exception;
+    }
+
+    /**
+     * A running request.
+     */
+    public static final class Call {
+        private final Thread thread;
+        private final List<Runnable> abortActions = new ArrayList<>();
+        private boolean cancelled;
+        private boolean finished;
+
+        private Call(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Registers an action aborting the underlying HTTP call. It runs right away if the request is already cancelled.
+         */
+        public synchronized void onAbort(Runnable abortAction) {
+            if (cancelled) {
+                abortAction.run();
+            } else {
+                abortActions.add(abortAction);
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @throws CancellationException if the request was cancelled, e.g. to stop reading a stream
+         */
+        public void throwIfCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException("LLM request was cancelled");
+            }
+        }
+
+        private synchronized void cancel() {
+            if (cancelled || finished) return;
+            cancelled = true;
+            for (Runnable abortAction : abortActions) {
+                try {
+                    abortAction.run();
+                } catch (Exception ignored) {
+                    // best effort, the thread is interrupted anyway
+                }
+            }
+            thread.interrupt();
+        }
+
+        private synchronized void finish() {
+            finished = true;
+            if (cancelled) {
+                // the interrupt only aborts this request, not the thread that ran it
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package me.sailex.secondbrain.llm;
 import me.sailex.secondbrain.history.Message;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface LLMClient {
 
@@ -13,6 +14,45 @@ public interface LLMClient {
      */
     Message chat(List<Message> messages);
 
+    /**
+     * Lets the LLM generate a chat response to the conversationHistory and passes the generated text
+     * to the handler while it is generated. Clients whose API can't stream pass the whole response at once.
+     * @param messages conversationHistory
+     * @param chunkHandler called with every generated text chunk in order
+     * @return responseMessage containing all chunks
+     */
+    default Message chatStreaming(List<Message> messages, Consumer<String> chunkHandler) {
+        Message response = chat(messages);
+        chunkHandler.accept(response.getMessage());
+        return response;
+    }
+
+    /**
+     * Aborts the requests of this client that are in flight, they throw a
+     * {@link java.util.concurrent.CancellationException}. Clients that can't abort their requests ignore it.
+     */
+    default void cancelRequests() {
+    }
+
+    /**
+     * Aborts the requests of this client the thread is running, e.g. the request of a superseded event,
+     * while requests of other threads like summaries keep running. Clients that can't abort their requests ignore it.
+     */
+    default void cancelRequests(Thread thread) {
+    }
+
+    /**
+     * @return key of the backend the requests are sent to, clients sharing a key share its request slots
+     */
+    String getBackendKey();
+
+    /**
+     * @return how many requests the backend should run at once, local backends usually serialize them anyway
+     */
+    default int getMaxConcurrentRequests() {
+        return 1;
+    }
+
     /**
      * Check if the service is reachable
      */
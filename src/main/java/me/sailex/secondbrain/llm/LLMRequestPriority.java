@@ -0,0 +1,19 @@
+package me.sailex.secondbrain.llm;
+
+/**
+ * Priority of a request in the {@link LLMScheduler}. Requests are served in the order of the constants.
+ */
+public enum LLMRequestPriority {
+    /**
+     * Response to a player, e.g. a chat message or speech.
+     */
+    INTERACTIVE,
+    /**
+     * Retry after a command of the NPC failed.
+     */
+    COMMAND_RETRY,
+    /**
+     * Requests no player waits for, e.g. the initial prompt or summarizing the conversation.
+     */
+    BACKGROUND
+}
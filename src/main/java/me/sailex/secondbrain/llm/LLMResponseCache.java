@@ -0,0 +1,141 @@
+package me.sailex.secondbrain.llm;
+
+import me.sailex.secondbrain.config.ConfigProvider;
+import me.sailex.secondbrain.database.repositories.ResponseCacheRepository;
+import me.sailex.secondbrain.history.Message;
+import me.sailex.secondbrain.util.LogUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Opt-in cache of LLM responses to byte-identical requests, e.g. the initial prompt of an NPC that is respawned
+ * or a summary of the same conversation. Responses are keyed by a hash of the backend and the messages
+ * and kept in memory, with a tier in the database that survives restarts if persistence is enabled in the base config.
+ * Both tiers drop responses after {@link #TTL} and keep at most {@link #MAX_ENTRIES} responses.
+ */
+public class LLMResponseCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final Duration TTL = Duration.ofHours(6);
+
+    private final ConfigProvider configProvider;
+    private final ResponseCacheRepository repository;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @param repository database tier, or null to only cache in memory.
+     *                   It is only used while persistence is enabled in the base config
+     */
+    public LLMResponseCache(ConfigProvider configProvider, ResponseCacheRepository repository) {
+        this.configProvider = configProvider;
+        this.repository = repository;
+    }
+
+    /**
+     * @return the cached response to the messages or the response of the request, which is cached then.
+     * If the cache is disabled in the base config the request is always sent.
+     */
+    public Message getOrRequest(LLMClient client, List<Message> messages, Supplier<Message> request) {
+        if (!configProvider.getBaseConfig().isLlmResponseCache()) {
+            return request.get();
+        }
+        String key = buildKey(client, messages);
+        Message cached = get(key);
+        if (cached != null) {
+            LogUtil.info("Using cached LLM response for " + client.getBackendKey());
+            return cached;
+        }
+        Message response = request.get();
+        put(key, response);
+        return response;
+    }
+
+    private Message get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.createdAt() < TTL.toMillis()) {
+                    return entry.response();
+                }
+                entries.remove(key);
+            }
+        }
+        ResponseCacheRepository repository = getPersistentRepository();
+        if (repository == null) {
+            return null;
+        }
+        try {
+            Message stored = repository.selectByKey(key, now - TTL.toMillis());
+            if (stored != null) {
+                synchronized (entries) {
+                    entries.put(key, new Entry(stored, now));
+                }
+            }
+            return stored;
+        } catch (Exception e) {
+            LogUtil.error("Could not read cached LLM response", e);
+            return null;
+        }
+    }
+
+    private void put(String key, Message response) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            entries.put(key, new Entry(response, now));
+        }
+        ResponseCacheRepository repository = getPersistentRepository();
+        if (repository == null) {
+            return;
+        }
+        try {
+            repository.insert(key, response, now);
+            repository.deleteExpired(now - TTL.toMillis(), MAX_ENTRIES);
+        } catch (Exception e) {
+            LogUtil.error("Could not store LLM response in cache", e);
+        }
+    }
+
+    private ResponseCacheRepository getPersistentRepository() {
+        return configProvider.getBaseConfig().isLlmResponseCachePersistent() ? repository : null;
+    }
+
+    private static String buildKey(LLMClient client, List<Message> messages) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, client.getClass().getName());
+            update(digest, client.getBackendKey());
+            for (Message message : messages) {
+                update(digest, message.getRole());
+                update(digest, message.getMessage());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // length prefix, so the boundaries between the values are part of the hash
+        digest.update(new byte[] {
+            (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length
+        });
+        digest.update(bytes);
+    }
+
+    private record Entry(Message response, long createdAt) {}
+}
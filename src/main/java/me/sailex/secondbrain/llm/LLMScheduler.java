@@ -0,0 +1,255 @@
+package me.sailex.secondbrain.llm;
+
+import me.sailex.secondbrain.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Coordinates the LLM requests of all NPCs.
+ * Every backend (URL and model) only runs as many requests at once as its client allows,
+ * further requests wait until a slot is free. Waiting requests are served by priority,
+ * within the same priority the NPC that was served least recently goes first,
+ * so one chatty NPC can't starve the others.
+ * Waiting uses a lock instead of monitors, so waiting virtual threads don't pin their carrier thread.
+ */
+public class LLMScheduler {
+
+    private static final long SLOW_WAIT_MS = 1000;
+    private static final long DIAG_RATE_LIMIT_MS = 5000;
+
+    private final Map<String, Backend> backends = new ConcurrentHashMap<>();
+    private final Map<LLMRequestPriority, WaitStats> waitStats = new EnumMap<>(LLMRequestPriority.class);
+
+    public LLMScheduler() {
+        for (LLMRequestPriority priority : LLMRequestPriority.values()) {
+            waitStats.put(priority, new WaitStats());
+        }
+    }
+
+    /**
+     * Runs the request on the calling thread as soon as the backend of the client has a free slot for it.
+     *
+     * @param client client the request is sent with
+     * @param requester name of the NPC sending the request
+     * @param priority priority of the request
+     * @param request request to run
+     * @return result of the request
+     * @throws IllegalStateException if the thread is interrupted while waiting
+     * @throws CancellationException if the waiting request is cancelled with {@link #cancelWaiting(String)}
+     */
+    public <T> T execute(LLMClient client, String requester, LLMRequestPriority priority, Supplier<T> request) {
+        Backend backend = backends.computeIfAbsent(client.getBackendKey(),
+                key -> new Backend(key, client.getMaxConcurrentRequests()));
+        long waitStartNs = System.nanoTime();
+        backend.acquire(requester, priority);
+        long waitMs = (System.nanoTime() - waitStartNs) / 1_000_000L;
+        waitStats.get(priority).record(waitMs);
+        logQueueWaitDiagnostic(backend, requester, priority, waitMs);
+        try {
+            return request.get();
+        } finally {
+            backend.release();
+        }
+    }
+
+    /**
+     * Cancels the requests of the requester that are still waiting for a slot, so they don't take up a slot later.
+     */
+    public void cancelWaiting(String requester) {
+        backends.values().forEach(backend -> backend.cancelWaiting(requester));
+    }
+
+    /**
+     * @return number of requests waiting for a slot of the backend
+     */
+    public int getQueueDepth(String backendKey) {
+        Backend backend = backends.get(backendKey);
+        return backend == null ? 0 : backend.getQueueDepth();
+    }
+
+    /**
+     * @return time requests of the priority waited for a slot since start
+     */
+    public WaitStats getWaitStats(LLMRequestPriority priority) {
+        return waitStats.get(priority);
+    }
+
+    private void logQueueWaitDiagnostic(Backend backend, String requester, LLMRequestPriority priority, long waitMs) {
+        if (!LogUtil.isVerboseEnabled() || waitMs <= SLOW_WAIT_MS) return;
+        LogUtil.warnRateLimited(
+            "llm.queue_wait." + backend.key + "." + priority,
+            "[SB-DIAG] area=llm-scheduler npc=" + requester + " thread=" + Thread.currentThread().getName()
+                + " metric=queue_wait_ms value=" + waitMs + " priority=" + priority
+                + " queue_depth=" + backend.getQueueDepth() + " avg_wait_ms=" + waitStats.get(priority).getAverageMs(),
+            DIAG_RATE_LIMIT_MS
+        );
+    }
+
+    /**
+     * Queue wait times of the requests of one priority.
+     */
+    public static class WaitStats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong totalWaitMs = new AtomicLong();
+        private final AtomicLong maxWaitMs = new AtomicLong();
+
+        private void record(long waitMs) {
+            requests.incrementAndGet();
+            totalWaitMs.addAndGet(waitMs);
+            maxWaitMs.accumulateAndGet(waitMs, Math::max);
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getAverageMs() {
+            long count = requests.get();
+            return count == 0 ? 0 : totalWaitMs.get() / count;
+        }
+
+        public long getMaxMs() {
+            return maxWaitMs.get();
+        }
+    }
+
+    private static class Backend {
+        private final String key;
+        private final int maxConcurrentRequests;
+        private final List<Ticket> waiting = new ArrayList<>();
+        private final Map<String, Long> lastServed = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private long sequence;
+        private int running;
+
+        private Backend(String key, int maxConcurrentRequests) {
+            this.key = key;
+            this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        }
+
+        private void acquire(String requester, LLMRequestPriority priority) {
+            lock.lock();
+            try {
+                Ticket ticket = new Ticket(requester, priority, sequence++);
+                waiting.add(ticket);
+                grantFreeSlots();
+                try {
+                    while (!ticket.granted && !ticket.cancelled) {
+                        changed.await();
+                    }
+                    if (!ticket.granted) {
+                        throw new CancellationException("LLM request was cancelled while waiting for backend " + key);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (ticket.granted) {
+                        running--;
+                    } else {
+                        waiting.remove(ticket);
+                    }
+                    grantFreeSlots();
+                    throw new IllegalStateException("Interrupted while waiting for LLM backend " + key, e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void cancelWaiting(String requester) {
+            lock.lock();
+            try {
+                boolean cancelled = waiting.removeIf(ticket -> {
+                    if (!ticket.requester.equals(requester)) return false;
+                    ticket.cancelled = true;
+                    return true;
+                });
+                if (cancelled) {
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                running--;
+                grantFreeSlots();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int getQueueDepth() {
+            lock.lock();
+            try {
+                return waiting.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void grantFreeSlots() {
+            boolean granted = false;
+            while (running < maxConcurrentRequests && !waiting.isEmpty()) {
+                Ticket next = nextTicket();
+                waiting.remove(next);
+                next.granted = true;
+                lastServed.put(next.requester, sequence++);
+                running++;
+                granted = true;
+            }
+            if (granted) {
+                changed.signalAll();
+            }
+        }
+
+        /**
+         * @return the waiting ticket with the highest priority, of the least recently served requester
+         * and the earliest arrival
+         */
+        private Ticket nextTicket() {
+            Ticket best = null;
+            for (Ticket ticket : waiting) {
+                if (best == null || compare(ticket, best) < 0) {
+                    best = ticket;
+                }
+            }
+            return best;
+        }
+
+        private int compare(Ticket a, Ticket b) {
+            int byPriority = a.priority.compareTo(b.priority);
+            if (byPriority != 0) return byPriority;
+            int byLastServed = Long.compare(lastServed.getOrDefault(a.requester, -1L), lastServed.getOrDefault(b.requester, -1L));
+            if (byLastServed != 0) return byLastServed;
+            return Long.compare(a.arrival, b.arrival);
+        }
+    }
+
+    private static class Ticket {
+        private final String requester;
+        private final LLMRequestPriority priority;
+        private final long arrival;
+        private boolean granted;
+        private boolean cancelled;
+
+        private Ticket(String requester, LLMRequestPriority priority, long arrival) {
+            this.requester = requester;
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -3,8 +3,12 @@ package me.sailex.secondbrain.llm.ollama;
 import io.github.ollama4j.OllamaAPI;
 import io.github.ollama4j.models.chat.*;
 import me.sailex.secondbrain.exception.LLMServiceException;
+import me.sailex.secondbrain.http.HttpTransport;
+import me.sailex.secondbrain.llm.InFlightRequests;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import lombok.Setter;
@@ -15,10 +19,14 @@ import me.sailex.secondbrain.util.LogUtil;
 
 public class OllamaClient implements LLMClient {
 
+	// keeps the model and its cached prompt prefix loaded between the events of the NPCs
+	private static final String KEEP_ALIVE = "30m";
+
 	@Setter
 	private OllamaAPI ollamaAPI;
 	private final String model;
 	private final String url;
+	private final InFlightRequests inFlightRequests = new InFlightRequests();
 
 	public OllamaClient(
         String model,
@@ -27,14 +35,30 @@ public class OllamaClient implements LLMClient {
 		boolean verbose
 	) {
 		this.url = url;
-		this.ollamaAPI = new OllamaAPI(url);
+		this.ollamaAPI = HttpTransport.shared().getOllamaApi(url, timeout, verbose);
 		this.model = model;
-		ollamaAPI.setVerbose(verbose);
-		ollamaAPI.setMaxChatToolCallRetries(1);
-		ollamaAPI.setRequestTimeoutSeconds(timeout);
 //		initModels(defaultPrompt);
 	}
 
+	/**
+	 * Interrupts the requests in flight, which aborts the exchange of the http client of ollama4j.
+	 * Streamed requests additionally stop at the next chunk.
+	 */
+	@Override
+	public void cancelRequests() {
+		inFlightRequests.cancelAll();
+	}
+
+	@Override
+	public void cancelRequests(Thread thread) {
+		inFlightRequests.cancel(thread);
+	}
+
+	@Override
+	public String getBackendKey() {
+		return url + "#" + model;
+	}
+
 	/**
 	 * Check if the service is reachable.
 	 * @throws LLMServiceException if server is not reachable
@@ -61,23 +85,56 @@ public class OllamaClient implements LLMClient {
             List<OllamaChatMessage> chatMessages = messages.stream()
                     .map(MessageConverter::toOllamaChatMessage)
                     .collect(Collectors.toList());
-            OllamaChatResult chatResult;
+            OllamaChatRequestBuilder requestBuilder = OllamaChatRequestBuilder.getInstance(model)
+                    .withMessages(chatMessages)
+                    .withKeepAlive(KEEP_ALIVE);
             if (shouldForceCommandJson(messages)) {
-                OllamaChatRequest request = OllamaChatRequestBuilder.getInstance(model)
-                        .withMessages(chatMessages)
-                        .withGetJsonResponse()
-                        .build();
-                chatResult = ollamaAPI.chat(request);
-            } else {
-                chatResult = ollamaAPI.chat(model, chatMessages);
+                requestBuilder.withGetJsonResponse();
             }
+            OllamaChatRequest request = requestBuilder.build();
+            OllamaChatResult chatResult = inFlightRequests.run(call -> ollamaAPI.chat(request));
 			List<OllamaChatMessage> response = chatResult.getChatHistory();
             return MessageConverter.toMessage(response.get(response.size() - 1));
+		} catch (CancellationException e) {
+			throw e;
 		} catch (Exception e) {
             throw new LLMServiceException("Could not generate Response for last prompt: " + messages.get(messages.size() - 1).getMessage(), e);
 		}
 	}
 
+	/**
+	 * Streams the response of the Ollama chat API, every streamed message contains the next generated chunk.
+	 */
+	@Override
+	public Message chatStreaming(List<Message> messages, Consumer<String> chunkHandler) {
+		try {
+			OllamaChatRequestBuilder requestBuilder = OllamaChatRequestBuilder.getInstance(model)
+					.withMessages(messages.stream()
+							.map(MessageConverter::toOllamaChatMessage)
+							.collect(Collectors.toList()))
+					.withKeepAlive(KEEP_ALIVE);
+			if (shouldForceCommandJson(messages)) {
+				requestBuilder.withGetJsonResponse();
+			}
+			OllamaChatRequest request = requestBuilder.build();
+			StringBuilder content = new StringBuilder();
+			inFlightRequests.run(call -> ollamaAPI.chatStreaming(request, chunk -> {
+				call.throwIfCancelled();
+				if (chunk.getMessage() == null || chunk.getMessage().getContent() == null
+						|| chunk.getMessage().getContent().isEmpty()) {
+					return;
+				}
+				content.append(chunk.getMessage().getContent());
+				chunkHandler.accept(chunk.getMessage().getContent());
+			}));
+			return new Message(content.toString(), "assistant");
+		} catch (CancellationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new LLMServiceException("Could not generate Response for last prompt: " + messages.get(messages.size() - 1).getMessage(), e);
+		}
+	}
+
     private static boolean shouldForceCommandJson(List<Message> messages) {
         for (Message message : messages) {
             if (message == null || message.getMessage() == null) {
@@ -149,6 +206,7 @@ public class OllamaClient implements LLMClient {
 
 	@Override
 	public void stopService() {
+		cancelRequests();
         try {
             //removeModel();
         } catch (Exception e) {
@@ -1,37 +1,53 @@
 package me.sailex.secondbrain.llm.openai;
 
 import com.openai.client.OpenAIClient;
-import com.openai.client.okhttp.OpenAIOkHttpClient;
 import com.openai.core.JsonValue;
 import com.openai.core.http.HttpResponse;
+import com.openai.core.http.StreamResponse;
 import com.openai.models.ResponseFormatJsonSchema;
 import com.openai.models.audio.speech.SpeechCreateParams;
 import com.openai.models.audio.speech.SpeechModel;
 import com.openai.models.chat.completions.ChatCompletion;
+import com.openai.models.chat.completions.ChatCompletionChunk;
 import com.openai.models.chat.completions.ChatCompletionCreateParams;
 import me.sailex.secondbrain.exception.LLMServiceException;
 import me.sailex.secondbrain.history.Message;
+import me.sailex.secondbrain.http.HttpTransport;
+import me.sailex.secondbrain.llm.InFlightRequests;
 import me.sailex.secondbrain.llm.LLMClient;
+import me.sailex.secondbrain.thread.NPCExecutors;
+
 
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.SourceDataLine;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 public class OpenAiClient implements LLMClient {
 
 	private final OpenAIClient openAiService;
+	private final OpenAIClient speechService;
+	private final String baseUrl;
 	private final String openAiModel;
     private final String voiceId;
     private final List<SourceDataLine> activeLines = Collections.synchronizedList(new ArrayList<>());
+    // playback stays on a platform thread, as writing to the audio line blocks in native code
+    private final ExecutorService audioExecutor = NPCExecutors.newPlatformSerialExecutor("openai-audio");
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+    // OpenAI returns raw PCM speech as 24kHz signed 16-bit little-endian mono
+    private static final AudioFormat PCM_FORMAT = new AudioFormat(24_000f, 16, 1, true, false);
+    private static final int PLAYBACK_BUFFER_MS = 250;
+    // the speech response is read at playback speed, so its call takes as long as the sentence is spoken
+    private static final int SPEECH_TIMEOUT_SECONDS = 120;
     private static final ResponseFormatJsonSchema NPC_COMMAND_RESPONSE_FORMAT = ResponseFormatJsonSchema.builder()
             .jsonSchema(ResponseFormatJsonSchema.JsonSchema.builder()
                     .name("npc_command_message")
@@ -56,38 +72,103 @@ public class OpenAiClient implements LLMClient {
 	public OpenAiClient(String model, String apiKey, String baseUrl, int timeout, String voiceId) {
 		this.openAiModel = model;
         this.voiceId = voiceId;
-		this.openAiService = OpenAIOkHttpClient.builder()
-                .apiKey(apiKey)
-                .baseUrl(normalizeBaseUrl(baseUrl))
-                .timeout(Duration.ofSeconds(Math.max(timeout, 1)))
-                .build();
+		this.baseUrl = normalizeBaseUrl(baseUrl);
+		this.openAiService = HttpTransport.shared().getOpenAiClient(this.baseUrl, apiKey, Math.max(timeout, 1));
+		this.speechService = HttpTransport.shared().getOpenAiClient(this.baseUrl, apiKey, SPEECH_TIMEOUT_SECONDS);
 	}
 
 	@Override
 	public Message chat(List<Message> messages) {
 		try {
-            ChatCompletionCreateParams.Builder requestBuilder = ChatCompletionCreateParams.builder()
-                    .model(openAiModel);
-            for (Message message : messages) {
-                addMessage(requestBuilder, message);
-            }
-            if (shouldForceCommandJson(messages)) {
-                requestBuilder.responseFormat(NPC_COMMAND_RESPONSE_FORMAT);
-            }
-
-            ChatCompletion response = openAiService.chat().completions().create(requestBuilder.build());
+            ChatCompletionCreateParams request = buildChatRequest(messages);
+            ChatCompletion response = inFlightRequests.run(call -> {
+                // the async call can be aborted by cancelling its future
+                CompletableFuture<ChatCompletion> completion = openAiService.async().chat().completions().create(request);
+                call.onAbort(() -> completion.cancel(true));
+                return completion.get();
+            });
             String content = response.choices().stream()
                     .findFirst()
                     .flatMap(choice -> choice.message().content())
                     .orElse("");
             return new Message(content, "assistant");
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
-            Throwable root = e;
-            while (root.getCause() != null) root = root.getCause();
-            String safeRootMessage = "Provider returned an error. Check base URL, model, and API key.";
-            throw new LLMServiceException("Could not generate Response for prompt: " + messages.get(messages.size() - 1).getMessage()
-                    + "\nRoot cause: " + root.getClass().getSimpleName() + ": " + safeRootMessage, e);
+            throw toChatException(messages, e);
+        }
+    }
+
+    /**
+     * Streams the chat completion via server-sent events, every event contains the next generated chunk.
+     */
+    @Override
+    public Message chatStreaming(List<Message> messages, Consumer<String> chunkHandler) {
+        try {
+            ChatCompletionCreateParams request = buildChatRequest(messages);
+            return inFlightRequests.run(call -> {
+                try (StreamResponse<ChatCompletionChunk> response = openAiService.chat().completions()
+                        .createStreaming(request)) {
+                    // closing the stream aborts the response that is still generated
+                    call.onAbort(response::close);
+                    StringBuilder content = new StringBuilder();
+                    response.stream()
+                            .flatMap(chunk -> chunk.choices().stream().findFirst().stream())
+                            .flatMap(choice -> choice.delta().content().stream())
+                            .filter(chunk -> !chunk.isEmpty())
+                            .forEach(chunk -> {
+                                call.throwIfCancelled();
+                                content.append(chunk);
+                                chunkHandler.accept(chunk);
+                            });
+                    return new Message(content.toString(), "assistant");
+                }
+            });
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw toChatException(messages, e);
+        }
+    }
+
+    private ChatCompletionCreateParams buildChatRequest(List<Message> messages) {
+        ChatCompletionCreateParams.Builder requestBuilder = ChatCompletionCreateParams.builder()
+                .model(openAiModel);
+        for (Message message : messages) {
+            addMessage(requestBuilder, message);
         }
+        if (shouldForceCommandJson(messages)) {
+            requestBuilder.responseFormat(NPC_COMMAND_RESPONSE_FORMAT);
+        }
+        return requestBuilder.build();
+    }
+
+    private static LLMServiceException toChatException(List<Message> messages, Exception e) {
+        Throwable root = e;
+        while (root.getCause() != null) root = root.getCause();
+        String safeRootMessage = "Provider returned an error. Check base URL, model, and API key.";
+        return new LLMServiceException("Could not generate Response for prompt: " + messages.get(messages.size() - 1).getMessage()
+                + "\nRoot cause: " + root.getClass().getSimpleName() + ": " + safeRootMessage, e);
+    }
+
+    @Override
+    public void cancelRequests() {
+        inFlightRequests.cancelAll();
+    }
+
+    @Override
+    public void cancelRequests(Thread thread) {
+        inFlightRequests.cancel(thread);
+    }
+
+    @Override
+    public String getBackendKey() {
+        return baseUrl + "#" + openAiModel;
+    }
+
+    @Override
+    public int getMaxConcurrentRequests() {
+        return HttpTransport.shared().getMaxRequestsPerHost();
     }
 
     @Override
@@ -97,6 +178,8 @@ public class OpenAiClient implements LLMClient {
 
     @Override
     public void stopService() {
+        cancelRequests();
+        audioExecutor.shutdownNow();
         synchronized (activeLines) {
             for (SourceDataLine line : new ArrayList<>(activeLines)) {
                 try {
@@ -111,36 +194,69 @@ public class OpenAiClient implements LLMClient {
         }
 	}
 
-    public void startTextToSpeech(String message) {
-        if (message == null || message.isBlank()) {
-            return;
-        }
+    /**
+     * @return the executor speech of this client is played on, it is shut down and its audio lines closed
+     * when the client is stopped
+     */
+    public ExecutorService getAudioExecutor() {
+        return audioExecutor;
+    }
+
+    /**
+     * Requests the speech audio of the message as raw PCM stream.
+     * Returns as soon as the response headers arrived, the audio is read while it is played.
+     *
+     * @return the open response, which is closed by {@link #playSpeech(HttpResponse)}
+     * or {@link #discardSpeech(HttpResponse)}
+     */
+    public HttpResponse synthesizeSpeech(String message) {
         try {
             SpeechCreateParams request = SpeechCreateParams.builder()
                     .model(SpeechModel.GPT_4O_MINI_TTS)
                     .voice(resolveVoice(voiceId))
                     .input(message)
-                    .responseFormat(SpeechCreateParams.ResponseFormat.WAV)
+                    .responseFormat(SpeechCreateParams.ResponseFormat.PCM)
                     .build();
 
-            byte[] audioBytes;
-            try (HttpResponse response = openAiService.audio().speech().create(request);
-                 InputStream body = response.body()) {
-                if (response.statusCode() < 200 || response.statusCode() >= 300) {
-                    throw new LLMServiceException("OpenAI TTS request failed with HTTP status " + response.statusCode());
-                }
-                audioBytes = body.readAllBytes();
+            HttpResponse response = HttpTransport.shared().withHostPermit(baseUrl,
+                    () -> speechService.audio().speech().create(request));
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                response.close();
+                throw new LLMServiceException("OpenAI TTS request failed with HTTP status " + response.statusCode());
             }
-            playWav(audioBytes);
+            return response;
+        } catch (Exception e) {
+            throw toSpeechException(e);
+        }
+    }
+
+    /**
+     * Plays the audio of the response while it is downloaded and blocks until it is played.
+     */
+    public void playSpeech(HttpResponse response) {
+        try (HttpResponse speech = response;
+             InputStream body = speech.body()) {
+            playPcm(body);
         } catch (Exception e) {
-            Throwable root = e;
-            while (root.getCause() != null) root = root.getCause();
-            String safeRootMessage = "TTS provider returned an error.";
-            throw new LLMServiceException("Failed to generate OpenAI TTS audio"
-                    + "\nRoot cause: " + root.getClass().getSimpleName() + ": " + safeRootMessage, e);
+            throw toSpeechException(e);
         }
     }
 
+    /**
+     * Closes the response of speech that won't be played.
+     */
+    public void discardSpeech(HttpResponse response) {
+        response.close();
+    }
+
+    private static LLMServiceException toSpeechException(Exception e) {
+        Throwable root = e;
+        while (root.getCause() != null) root = root.getCause();
+        String safeRootMessage = "TTS provider returned an error.";
+        return new LLMServiceException("Failed to generate OpenAI TTS audio"
+                + "\nRoot cause: " + root.getClass().getSimpleName() + ": " + safeRootMessage, e);
+    }
+
     private static String normalizeBaseUrl(String baseUrl) {
         if (baseUrl == null || baseUrl.isBlank()) {
             return "https://api.openai.com/v1";
@@ -202,55 +318,38 @@ public class OpenAiClient implements LLMClient {
         };
     }
 
-    private void playWav(byte[] audioBytes) throws Exception {
-        if (audioBytes == null || audioBytes.length == 0) {
-            throw new LLMServiceException("OpenAI TTS returned empty audio");
-        }
-        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(audioBytes);
-             AudioInputStream sourceStream = AudioSystem.getAudioInputStream(byteArrayInputStream)) {
-            AudioFormat sourceFormat = sourceStream.getFormat();
-            AudioFormat targetFormat = sourceFormat;
-            AudioInputStream playbackStream = sourceStream;
-
-            boolean requiresPcm16 = !AudioFormat.Encoding.PCM_SIGNED.equals(sourceFormat.getEncoding())
-                    || sourceFormat.getSampleSizeInBits() != 16;
-            if (requiresPcm16) {
-                AudioFormat pcm16 = new AudioFormat(
-                        AudioFormat.Encoding.PCM_SIGNED,
-                        sourceFormat.getSampleRate(),
-                        16,
-                        sourceFormat.getChannels(),
-                        sourceFormat.getChannels() * 2,
-                        sourceFormat.getSampleRate(),
-                        false
-                );
-                if (AudioSystem.isConversionSupported(pcm16, sourceFormat)) {
-                    targetFormat = pcm16;
-                    playbackStream = AudioSystem.getAudioInputStream(pcm16, sourceStream);
-                }
-            }
-
-            try (AudioInputStream playableStream = playbackStream) {
-                DataLine.Info info = new DataLine.Info(SourceDataLine.class, targetFormat);
-                SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-                activeLines.add(line);
-                try {
-                    line.open(targetFormat);
-                    line.start();
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = playableStream.read(buffer, 0, buffer.length)) != -1) {
-                        if (bytesRead > 0) {
-                            line.write(buffer, 0, bytesRead);
-                        }
-                    }
-                    line.drain();
-                } finally {
-                    line.stop();
-                    line.close();
-                    activeLines.remove(line);
+    /**
+     * Writes the PCM stream into an audio line as it arrives.
+     * The line buffer holds about {@link #PLAYBACK_BUFFER_MS} of audio, so playback starts after the first chunk
+     * and the download is only ahead of playback by that much.
+     */
+    private void playPcm(InputStream pcmStream) throws Exception {
+        int frameSize = PCM_FORMAT.getFrameSize();
+        int bufferSize = (int) (PCM_FORMAT.getFrameRate() * PLAYBACK_BUFFER_MS / 1000) * frameSize;
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, PCM_FORMAT);
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+        activeLines.add(line);
+        try {
+            line.open(PCM_FORMAT, bufferSize);
+            line.start();
+            byte[] buffer = new byte[4096];
+            int buffered = 0;
+            int bytesRead;
+            while ((bytesRead = pcmStream.read(buffer, buffered, buffer.length - buffered)) != -1) {
+                buffered += bytesRead;
+                // only whole frames can be written, the rest is kept for the next read
+                int writable = buffered - buffered % frameSize;
+                if (writable > 0) {
+                    line.write(buffer, 0, writable);
+                    System.arraycopy(buffer, writable, buffer, 0, buffered - writable);
+                    buffered -= writable;
                 }
             }
+            line.drain();
+        } finally {
+            line.stop();
+            line.close();
+            activeLines.remove(line);
         }
     }
 
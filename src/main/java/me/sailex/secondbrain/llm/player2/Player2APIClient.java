@@ -7,6 +7,8 @@ import lombok.Getter;
 import me.sailex.secondbrain.exception.LLMServiceException;
 import me.sailex.secondbrain.history.Message;
 import me.sailex.secondbrain.history.MessageConverter;
+import me.sailex.secondbrain.http.HttpTransport;
+import me.sailex.secondbrain.llm.InFlightRequests;
 import me.sailex.secondbrain.llm.LLMClient;
 import me.sailex.secondbrain.llm.player2.model.*;
 import me.sailex.secondbrain.util.LogUtil;
@@ -14,13 +16,13 @@ import org.apache.http.HttpException;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import static me.sailex.secondbrain.SecondBrain.MOD_ID;
 
@@ -34,7 +36,8 @@ public class Player2APIClient implements LLMClient {
     private final String voiceId;
     private final String npcName; //only for debugging
     private final ObjectMapper mapper;
-    private final HttpClient client;
+    private final Duration timeout;
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
 
     public Player2APIClient() {
         this(null, "default", 10);
@@ -44,9 +47,7 @@ public class Player2APIClient implements LLMClient {
         this.voiceId = voiceId;
         this.npcName = npcName;
         this.mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
-        this.client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(timeout))
-                .build();
+        this.timeout = Duration.ofSeconds(timeout);
     }
 
     @Getter
@@ -76,18 +77,23 @@ public class Player2APIClient implements LLMClient {
                             .map(MessageConverter::toPlayer2ChatMessage)
                             .toList())
                     .build();
-            Player2ResponseMessage result = sendChatRequest(request);
+            // the interrupt of a cancelled request aborts the exchange of the http client
+            Player2ResponseMessage result = inFlightRequests.run(call -> sendChatRequest(request));
             return MessageConverter.toMessage(result);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             throw new LLMServiceException("Could not generate Response for prompt: " + messages.get(messages.size() - 1).getMessage(), e);
         }
     }
 
     private Player2ResponseMessage sendChatRequest(ChatRequest request) throws IOException, HttpException {
+        // chat requests are limited by the LLMScheduler already
         return sendPostRequest(
                 API_ENDPOINT.CHAT_COMPLETION.getUrl(),
                 request,
-                Chat.class
+                Chat.class,
+                false
         ).firstMessage();
     }
 
@@ -166,6 +172,21 @@ public class Player2APIClient implements LLMClient {
         }
     }
 
+    @Override
+    public void cancelRequests() {
+        inFlightRequests.cancelAll();
+    }
+
+    @Override
+    public void cancelRequests(Thread thread) {
+        inFlightRequests.cancel(thread);
+    }
+
+    @Override
+    public String getBackendKey() {
+        return BASE_URL;
+    }
+
     @Override
     public void checkServiceIsReachable() throws LLMServiceException {
         this.getHealthStatus();
@@ -173,41 +194,52 @@ public class Player2APIClient implements LLMClient {
 
     @Override
     public void stopService() {
-        //theres nothing to stop
+        cancelRequests();
     }
 
     private <T> T sendPostRequest(String url, Object requestBody, Class<T> responseType) throws IOException, HttpException {
+        return sendPostRequest(url, requestBody, responseType, true);
+    }
+
+    private <T> T sendPostRequest(String url, Object requestBody, Class<T> responseType, boolean hostPermit)
+            throws IOException, HttpException {
         String requestJson = mapper.writeValueAsString(requestBody);
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create(BASE_URL + url))
+                .timeout(timeout)
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(requestJson, StandardCharsets.UTF_8))
                 .build();
         LogUtil.info(npcName + " - " + request.method() + " - " + request.uri() + ": " + requestJson);
-        return sendRequest(request, responseType);
+        return sendRequest(request, responseType, hostPermit);
     }
 
     private <T> T sendGetRequest(String url, Class<T> responseType, String... headers) throws IOException, HttpException {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(BASE_URL + url))
+                .timeout(timeout)
                 .GET();
         if (headers.length > 0) {
             builder.headers(headers);
         }
         HttpRequest request = builder.build();
         LogUtil.info(npcName + " - " + request.method() + " - " + request.uri() + " headers: " + Arrays.toString(headers));
-        return sendRequest(request, responseType);
+        return sendRequest(request, responseType, true);
     }
 
-    private <T> T sendRequest(HttpRequest request, Class<T> responseType) throws IOException, HttpException {
-        HttpResponse<String> response = sendRequest(request);
+    private <T> T sendRequest(HttpRequest request, Class<T> responseType, boolean hostPermit)
+            throws IOException, HttpException {
+        HttpResponse<String> response = sendRequest(request, hostPermit);
         LogUtil.info(npcName + " - " + response.statusCode() + " - " + response.uri() + ": " + mapper.writeValueAsString(response.body()));
         return mapper.readValue(response.body(), responseType);
     }
 
-    private HttpResponse<String> sendRequest(HttpRequest request) throws IOException, HttpException {
+    private HttpResponse<String> sendRequest(HttpRequest request, boolean hostPermit) throws IOException, HttpException {
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpTransport transport = HttpTransport.shared();
+            HttpResponse<String> response = hostPermit
+                    ? transport.send(request, HttpResponse.BodyHandlers.ofString())
+                    : transport.sendWithoutPermit(request, HttpResponse.BodyHandlers.ofString());
             int status = response.statusCode();
 
             if (status != 200) {
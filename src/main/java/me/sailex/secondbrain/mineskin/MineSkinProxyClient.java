@@ -2,10 +2,10 @@ package me.sailex.secondbrain.mineskin;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
+import me.sailex.secondbrain.http.HttpTransport;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.Objects;
@@ -16,16 +16,6 @@ public class MineSkinProxyClient {
     public static final Gson GSON = new Gson();
     private static final String SPECIAL_FILE_PATH = "/Special:FilePath/";
 
-    private final HttpClient proxyClient;
-    private final HttpClient redirectClient;
-
-    public MineSkinProxyClient() {
-        proxyClient = HttpClient.newBuilder().build();
-        redirectClient = HttpClient.newBuilder()
-                .followRedirects(HttpClient.Redirect.ALWAYS)
-                .build();
-    }
-
     public SkinResponse getSkin(String url) {
         try {
             String resolvedUrl = resolveSkinUrl(url);
@@ -36,7 +26,7 @@ public class MineSkinProxyClient {
                     .header("Accept", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(GSON.toJson(requestBody)))
                     .build();
-            HttpResponse<String> response = proxyClient.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HttpTransport.shared().send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() / 100 != 2) {
                 String responseBody = response.body() == null ? "" : response.body().trim();
                 if (responseBody.length() > 300) {
@@ -74,7 +64,7 @@ public class MineSkinProxyClient {
                 .header("Accept", "image/*,*/*;q=0.8")
                 .GET()
                 .build();
-        HttpResponse<Void> response = redirectClient.send(request, HttpResponse.BodyHandlers.discarding());
+        HttpResponse<Void> response = HttpTransport.shared().send(request, HttpResponse.BodyHandlers.discarding());
         URI resolvedUri = response.uri();
         if (resolvedUri == null) {
             return url;
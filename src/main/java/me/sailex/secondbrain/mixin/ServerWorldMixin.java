@@ -0,0 +1,21 @@
+package me.sailex.secondbrain.mixin;
+
+import me.sailex.secondbrain.callback.BlockEvents;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ServerWorld.class)
+public abstract class ServerWorldMixin {
+
+    @Inject(method = "updateListeners", at = @At("HEAD"))
+    private void onUpdateListeners(BlockPos pos, BlockState oldState, BlockState newState, int flags, CallbackInfo ci) {
+        if (oldState != newState) {
+            BlockEvents.ON_BLOCK_CHANGED.invoker().onBlockChanged((ServerWorld) (Object) this, pos);
+        }
+    }
+}
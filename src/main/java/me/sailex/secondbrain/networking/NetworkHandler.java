@@ -8,6 +8,7 @@ import me.sailex.secondbrain.common.NPCService;
 import me.sailex.secondbrain.config.BaseConfig;
 import me.sailex.secondbrain.config.ConfigProvider;
 import me.sailex.secondbrain.config.NPCConfig;
+import me.sailex.secondbrain.http.HttpTransport;
 import me.sailex.secondbrain.networking.packet.*;
 import me.sailex.secondbrain.util.LogUtil;
 import net.minecraft.entity.player.PlayerEntity;
@@ -74,6 +75,7 @@ public class NetworkHandler {
                     updatedConfig.setOpenaiApiKey(currentConfig.getOpenaiApiKey());
                 }
                 configProvider.setBaseConfig(updatedConfig);
+                HttpTransport.configure(updatedConfig);
                 LogUtil.info("Updated base config to: " + configPacket);
             }
         });
@@ -0,0 +1,64 @@
+package me.sailex.secondbrain.thread;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors of the blocking NPC work like LLM and TTS requests or skin fetches.
+ * On Java 21 they run on virtual threads, so the number of platform threads stays the same however many NPCs exist.
+ * On Java 17 they fall back to named daemon platform threads.
+ * Work blocking in native code, e.g. audio playback, should stay on platform threads,
+ * as it pins the carrier of a virtual thread.
+ */
+public final class NPCExecutors {
+
+    private NPCExecutors() {}
+
+    /**
+     * @return executor running its tasks one after another in order of submission
+     */
+    public static ExecutorService newSerialExecutor(String name) {
+        return Executors.newSingleThreadExecutor(threadFactory(name));
+    }
+
+    /**
+     * @return executor running every task on a new thread, for independent subtasks of an event
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        //? if >=1.20.6 {
+        /*return Executors.newThreadPerTaskExecutor(threadFactory(name));
+        *///?} else {
+        return Executors.newCachedThreadPool(threadFactory(name));
+        //?}
+    }
+
+    /**
+     * @return factory of virtual threads on Java 21, of daemon platform threads otherwise
+     */
+    public static ThreadFactory threadFactory(String name) {
+        //? if >=1.20.6 {
+        /*return Thread.ofVirtual().name(name + "-", 0).factory();
+        *///?} else {
+        AtomicInteger threadCount = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        //?}
+    }
+
+    /**
+     * @return executor running its tasks one after another on a platform thread, for work that must not be pinned
+     * to the carrier of a virtual thread
+     */
+    public static ExecutorService newPlatformSerialExecutor(String name) {
+        return Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -6,6 +6,9 @@ import net.minecraft.util.math.BlockPos;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -14,18 +17,54 @@ import java.util.stream.Collectors;
  */
 public class PromptFormatter {
 
+	private static final String INSTRUCTION_HEADER = "# INSTRUCTION\n";
+	private static final String ENVIRONMENT_HEADER = "\n# ENVIRONMENT\n";
+	private static final String ENVIRONMENT_CHANGES_HEADER = "\n# ENVIRONMENT CHANGES\n";
+	private static final int ENTITY_LIMIT = 10;
+	private static final int BLOCK_LIMIT = 15;
+	private static final String NO_CHANGES = "<no changes>";
+
 	private PromptFormatter() {}
 
 	public static String format(String prompt, WorldContext worldContext) {
 		return Instructions.PROMPT_TEMPLATE.formatted(
 				prompt,
-				formatEntities(worldContext.nearbyEntities(), 10),
-				formatBlocks(worldContext.nearbyBlocks(), 15),
+				formatEntities(worldContext.nearbyEntities(), ENTITY_LIMIT),
+				formatBlocks(worldContext.nearbyBlocks(), BLOCK_LIMIT),
 				formatInventory(worldContext.inventory()),
 				formatNPCState(worldContext.state())
 		);
 	}
 
+	/**
+	 * Formats the prompt with only the changes of the environment between the context the LLM was given last
+	 * and the current one. Entities and blocks are compared as they were listed in the prompts.
+	 */
+	public static String formatDelta(String prompt, WorldContext previous, WorldContext current) {
+		return Instructions.DELTA_PROMPT_TEMPLATE.formatted(
+				prompt,
+				formatListDelta(
+						listedEntities(previous.nearbyEntities()), listedEntities(current.nearbyEntities()), EntityData::name),
+				formatListDelta(
+						listedBlockTypes(previous.nearbyBlocks()), listedBlockTypes(current.nearbyBlocks()), Function.identity()),
+				formatInventoryDelta(previous.inventory(), current.inventory()),
+				formatNPCStateDelta(previous.state(), current.state())
+		);
+	}
+
+	/**
+	 * @return the prompt without the environment, inventory and state sections of the {@link Instructions#PROMPT_TEMPLATE}
+	 * or the {@link Instructions#DELTA_PROMPT_TEMPLATE}
+	 */
+	public static String stripEnvironment(String formattedPrompt) {
+		int environmentStart = Math.max(
+				formattedPrompt.lastIndexOf(ENVIRONMENT_HEADER), formattedPrompt.lastIndexOf(ENVIRONMENT_CHANGES_HEADER));
+		if (!formattedPrompt.startsWith(INSTRUCTION_HEADER) || environmentStart < 0) {
+			return formattedPrompt;
+		}
+		return formattedPrompt.substring(0, environmentStart).stripTrailing();
+	}
+
 	public static String formatNPCState(StateData state) {
 		BlockPos position = state.position();
 		return String.format(
@@ -61,6 +100,58 @@ public class PromptFormatter {
 		return String.join("\n", invParts);
 	}
 
+	private static List<EntityData> listedEntities(List<EntityData> entities) {
+		return entities.stream().distinct().limit(ENTITY_LIMIT).toList();
+	}
+
+	private static List<String> listedBlockTypes(List<BlockData> blocks) {
+		return blocks.stream().limit(BLOCK_LIMIT).map(BlockData::type).toList();
+	}
+
+	private static <T> String formatListDelta(List<T> previous, List<T> current, Function<T, String> formatter) {
+		List<String> changes = new ArrayList<>();
+		List<T> appeared = current.stream().filter(element -> !previous.contains(element)).toList();
+		List<T> gone = previous.stream().filter(element -> !current.contains(element)).toList();
+		if (!appeared.isEmpty()) {
+			changes.add("new: " + formatList(appeared, formatter));
+		}
+		if (!gone.isEmpty()) {
+			changes.add("gone: " + formatList(gone, formatter));
+		}
+		return changes.isEmpty() ? NO_CHANGES : String.join("\n", changes);
+	}
+
+	private static String formatInventoryDelta(InventoryData previous, InventoryData current) {
+		Map<String, Integer> counts = new TreeMap<>();
+		current.getAllItems().forEach(item -> counts.merge(item.type(), item.count(), Integer::sum));
+		previous.getAllItems().forEach(item -> counts.merge(item.type(), -item.count(), Integer::sum));
+		String changes = counts.entrySet().stream()
+				.filter(entry -> entry.getValue() != 0)
+				.map(entry -> (entry.getValue() > 0 ? "+" : "") + entry.getValue() + " " + entry.getKey())
+				.collect(Collectors.joining(", "));
+		return changes.isEmpty() ? NO_CHANGES : changes;
+	}
+
+	private static String formatNPCStateDelta(StateData previous, StateData current) {
+		List<String> changes = new ArrayList<>();
+		BlockPos from = previous.position();
+		BlockPos to = current.position();
+		if (!from.equals(to)) {
+			changes.add(String.format("- moved by x: %s y: %s, z: %s to %s",
+					to.getX() - from.getX(), to.getY() - from.getY(), to.getZ() - from.getZ(), formatPosition(to)));
+		}
+		if (previous.health() != current.health()) {
+			changes.add("- health: " + current.health());
+		}
+		if (previous.food() != current.food()) {
+			changes.add("- hunger: " + current.food());
+		}
+		if (!Objects.equals(previous.biome(), current.biome())) {
+			changes.add("- biome: " + current.biome());
+		}
+		return changes.isEmpty() ? NO_CHANGES : String.join("\n", changes);
+	}
+
 	private static void addInventoryPart(List<ItemData> items, String prefix, List<String> parts) {
 		if (!items.isEmpty()) {
 			parts.add(prefix + formatInventoryPart(items));
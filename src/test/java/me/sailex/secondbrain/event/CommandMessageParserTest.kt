@@ -0,0 +1,98 @@
+package me.sailex.secondbrain.event
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+
+class CommandMessageParserTest {
+
+    private val commands = ArrayList<String>()
+    private val messageParts = StringBuilder()
+    private val messages = ArrayList<String>()
+
+    private val parser = CommandMessageParser(
+        onCommand = { commands.add(it) },
+        onMessagePart = { messageParts.append(it) },
+        onMessage = { messages.add(it) }
+    )
+
+    @Test
+    fun parsesResponseInCodeFence() {
+        val result = stream("```json\n{\"command\": \"idle\", \"message\": \"Hi there\"}\n```")
+
+        assertEquals(CommandMessageParser.CommandMessage("idle", "Hi there"), result)
+        assertEquals(listOf("idle"), commands)
+        assertEquals(listOf("Hi there"), messages)
+    }
+
+    @Test
+    fun skipsChatterBeforeObject() {
+        val result = stream("Sure! Here is my answer: {\"command\": \"follow Steve\", \"message\": \"On my way\"}")
+
+        assertEquals(CommandMessageParser.CommandMessage("follow Steve", "On my way"), result)
+    }
+
+    @Test
+    fun parsesReorderedKeys() {
+        val result = stream("{\"message\": \"Hello\", \"command\": \"idle\"}")
+
+        assertEquals(CommandMessageParser.CommandMessage("idle", "Hello"), result)
+        assertEquals(listOf("idle"), commands)
+        assertEquals(listOf("Hello"), messages)
+    }
+
+    @Test
+    fun unescapesQuotesAndNewlinesInMessage() {
+        val result = stream("{\"command\": \"idle\", \"message\": \"He said \\\"hi\\\"\\nBye \\u0021\"}")
+
+        assertEquals("He said \"hi\"\nBye !", result.message)
+        assertEquals("He said \"hi\"\nBye !", messageParts.toString())
+    }
+
+    @Test
+    fun passesCommandOnBeforeMessageIsComplete() {
+        parser.accept("{\"command\": \"idle\", \"mess")
+        assertEquals(listOf("idle"), commands)
+
+        parser.accept("age\": \"Hello")
+        assertEquals("Hello", messageParts.toString())
+        assertEquals(emptyList<String>(), messages)
+
+        parser.accept(" world\"}")
+        assertEquals(listOf("Hello world"), messages)
+    }
+
+    @Test
+    fun failsOnTruncatedStream() {
+        parser.accept("{\"command\": \"idle\", \"message\": \"Hello, I am")
+
+        assertThrows(CustomEventException::class.java) { parser.result() }
+        assertEquals(listOf("idle"), commands)
+        assertNull(parser.message)
+    }
+
+    @Test
+    fun fallsBackToLenientParseForUnquotedValues() {
+        val result = stream("{command: idle, message: 'Hello there'}")
+
+        assertEquals(CommandMessageParser.CommandMessage("idle", "Hello there"), result)
+        assertEquals(listOf("idle"), commands)
+        assertEquals(listOf("Hello there"), messages)
+    }
+
+    @Test
+    fun parsesSingleQuotedStrings() {
+        val result = stream("{'command': 'idle', 'message': 'It\\'s me'}")
+
+        assertEquals(CommandMessageParser.CommandMessage("idle", "It's me"), result)
+    }
+
+    /**
+     * Streams the response in chunks of a few characters, like an LLM does.
+     */
+    private fun stream(response: String): CommandMessageParser.CommandMessage {
+        response.chunked(3).forEach(parser::accept)
+        return parser.result()
+    }
+}